@@ -0,0 +1,218 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Connection capacity test of the server modes.
+ * Starts the server in a child JVM with a fixed heap, opens connections in steps until the target is reached
+ * or the server stops accepting, and reports the server's resident memory and thread count at each step.
+ * Then a share of the connections sends messages to show how the mode holds up with active clients.
+ * All client connections are driven by one selector thread so the test itself stays small.
+ * <p>
+ * Usage: java ConnectionLoadTest [mode] [connections] [active ratio] [message interval ms] [duration s] [server heap]
+ * <br>
+ * Example: java ConnectionLoadTest virtual 10000 0.1 1000 30 512m
+ * <br>
+ * Raise the open file limit first (ulimit -n) when testing thousands of connections
+ */
+public class ConnectionLoadTest {
+    private static final int STEP = 500;
+    private static final int ROOMS = 50;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "thread";
+        int target = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        double activeRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+        long intervalMs = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+        int durationSec = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+        String heap = args.length > 5 ? args[5] : "512m";
+
+        Process server = startServer(mode, heap);
+        Selector selector = Selector.open();
+        List<SocketChannel> connections = new ArrayList<>();
+        try {
+            System.out.printf("%-8s %12s %12s %10s%n", "mode", "connections", "rss (MB)", "threads");
+
+            // Idle phase: ramp up logged in connections that only read
+            boolean failed = false;
+            while (connections.size() < target && !failed) {
+                int step = Math.min(STEP, target - connections.size());
+                for (int i = 0; i < step; i++) {
+                    try {
+                        connections.add(connect(selector, connections.size()));
+                    } catch (IOException e) {
+                        System.out.println("Connect failed after " + connections.size() + " connections: " + e.getMessage());
+                        failed = true;
+                        break;
+                    }
+                }
+                drain(selector, 500);
+                if (!server.isAlive()) {
+                    System.out.println("Server died after " + connections.size() + " connections");
+                    break;
+                }
+                System.out.printf("%-8s %12d %12d %10d%n", mode, connections.size(), readStatus(server, "VmRSS") / 1024, readStatus(server, "Threads"));
+            }
+
+            // Active phase: a share of the connections sends messages at a fixed interval
+            int active = (int) (connections.size() * activeRatio);
+            long sent = 0;
+            long received = 0;
+            long end = System.currentTimeMillis() + durationSec * 1000L;
+            long nextRound = System.currentTimeMillis();
+            while (System.currentTimeMillis() < end && server.isAlive()) {
+                if (System.currentTimeMillis() >= nextRound) {
+                    for (int i = 0; i < active; i++) {
+                        if (send(connections.get(i), "load " + sent)) {
+                            sent++;
+                        }
+                    }
+                    nextRound += intervalMs;
+                }
+                received += drain(selector, Math.max(1, nextRound - System.currentTimeMillis()));
+            }
+            System.out.printf("%-8s %d connections, %d active: sent %d messages, received %d bytes in %ds, rss %d MB, %d threads%n",
+                    mode, connections.size(), active, sent, received, durationSec,
+                    readStatus(server, "VmRSS") / 1024, readStatus(server, "Threads"));
+        } finally {
+            for (SocketChannel channel : connections) {
+                channel.close();
+            }
+            server.destroy();
+        }
+    }
+
+    /**
+     * Start the server in a child JVM, inside a temporary working directory
+     *
+     * @param mode server mode
+     * @param heap max heap of the server
+     * @return server process
+     * @throws Exception
+     */
+    private static Process startServer(String mode, String heap) throws Exception {
+        Path dir = Files.createTempDirectory("chatroom-load");
+        String java = System.getProperty("java.home") + "/bin/java";
+        Process process = new ProcessBuilder(java, "-Xmx" + heap, "-Dchatroom.server.mode=" + mode,
+                "-cp", System.getProperty("java.class.path"), "Server")
+                .directory(dir.toFile())
+                .redirectOutput(dir.resolve("server.log").toFile())
+                .redirectErrorStream(true)
+                .start();
+
+        // Wait until the server accepts connections
+        for (int i = 0; i < 100; i++) {
+            try {
+                SocketChannel.open(new InetSocketAddress("localhost", Server.SERVER_PORT)).close();
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start, see " + dir.resolve("server.log"));
+    }
+
+    /**
+     * Open a connection and log in, in one of the test rooms
+     *
+     * @param selector selector reading all connections
+     * @param index    connection number
+     * @return connected channel
+     * @throws IOException
+     */
+    private static SocketChannel connect(Selector selector, int index) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", Server.SERVER_PORT));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeUTF("load-user-" + index);
+        dos.writeUTF("load-room-" + (index % ROOMS));
+        dos.writeInt(RequestType.USERS.ordinal());
+        writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        return channel;
+    }
+
+    /**
+     * Send a chat message, skipped if the socket buffer is full
+     *
+     * @param channel connection
+     * @param message chat message
+     * @return true if the message was sent
+     * @throws IOException
+     */
+    private static boolean send(SocketChannel channel, String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeInt(RequestType.MESSAGE.ordinal());
+        WireMessage.writeText(dos, message);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        channel.write(buffer);
+        return !buffer.hasRemaining();
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read and discard server output for a while, so the server never blocks on a full socket
+     *
+     * @param selector selector of all connections
+     * @param millis   time to spend
+     * @return number of bytes read
+     * @throws IOException
+     */
+    private static long drain(Selector selector, long millis) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long received = 0;
+        long end = System.currentTimeMillis() + millis;
+        long remaining;
+        while ((remaining = end - System.currentTimeMillis()) > 0) {
+            selector.select(remaining);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                buffer.clear();
+                int read = ((SocketChannel) key.channel()).read(buffer);
+                if (read < 0) {
+                    key.cancel();
+                } else {
+                    received += read;
+                }
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Read a value of /proc/<pid>/status, such as VmRSS (in kB) or Threads
+     *
+     * @param process server process
+     * @param field   status field
+     * @return field value, -1 if not available
+     */
+    private static long readStatus(Process process, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + process.pid() + "/status"))) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return -1;
+    }
+}
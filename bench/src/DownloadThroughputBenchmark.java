@@ -0,0 +1,198 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Download throughput of the zero copy path against the buffered path.
+ * Creates a large file in a room folder, starts the server in a child JVM once per configuration,
+ * and downloads the file a few times over one connection, reporting MB/s and the server's CPU time.
+ * <p>
+ * Usage: java DownloadThroughputBenchmark [file size MB] [rounds]
+ * <br>
+ * Example: java DownloadThroughputBenchmark 1024 5
+ */
+public class DownloadThroughputBenchmark {
+    private static final String ROOM = "bench-room";
+    private static final String FILENAME = "large.bin";
+    private static final String[][] CONFIGS = {
+            // name, server mode, zero copy
+            {"thread", "thread", "false"},
+            {"nio-buffered", "nio", "false"},
+            {"nio-zerocopy", "nio", "true"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path dir = Files.createTempDirectory("chatroom-download");
+        createFile(dir.resolve("Files").resolve(ROOM).resolve(FILENAME), sizeMb);
+        System.out.printf("%-14s %10s %12s %14s%n", "config", "round", "MB/s", "server cpu ms");
+        for (String[] config : CONFIGS) {
+            Process server = startServer(dir, config[1], config[2]);
+            try (Socket socket = new Socket("localhost", Server.SERVER_PORT)) {
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256 * 1024));
+                dos.writeUTF("bench-user");
+                dos.writeUTF(ROOM);
+                for (int round = 1; round <= rounds; round++) {
+                    long cpuBefore = readCpuMillis(server);
+                    long start = System.nanoTime();
+                    long bytes = download(dos, dis, dir);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.printf("%-14s %10d %12.1f %14d%n", config[0], round,
+                            bytes / seconds / (1024 * 1024), readCpuMillis(server) - cpuBefore);
+                }
+                dos.writeInt(RequestType.LOGOUT.ordinal());
+                dos.flush();
+            } finally {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    /**
+     * Read a roster, or the rest of a presence delta, which is laid out the same after its base version
+     *
+     * @throws IOException
+     */
+    private static void skipRoster(DataInputStream dis) throws IOException {
+        dis.readInt();
+        for (int count = dis.readInt(); count > 0; count--) {
+            dis.readInt();
+            dis.readUTF();
+            dis.readByte();
+        }
+    }
+
+    /**
+     * Request the file and read it to the end, discarding the content
+     *
+     * @return bytes received
+     * @throws IOException
+     */
+    private static long download(DataOutputStream dos, DataInputStream dis, Path dir) throws IOException {
+        dos.writeInt(RequestType.DOWNLOAD.ordinal());
+        dos.writeUTF(FILENAME);
+        dos.writeUTF(dir.toString());
+        dos.writeLong(0);
+        dos.writeLong(-1);
+        dos.flush();
+
+        byte[] buffer = new byte[256 * 1024];
+        long remaining = -1;
+        long received = 0;
+        while (remaining != 0) {
+            ResponseType type = ResponseType.values()[dis.readInt()];
+            switch (type) {
+                case DOWNLOAD:
+                    dis.readInt();
+                    dis.readLong();
+                    dis.readLong();
+                    remaining = dis.readLong();
+                    dis.readUTF();
+                    dis.readUTF();
+                    break;
+                case DOWNLOAD_CHUNK: {
+                    dis.readInt();
+                    int length = dis.readInt();
+                    while (length > 0) {
+                        int bytes = dis.read(buffer, 0, Math.min(buffer.length, length));
+                        if (bytes < 0) throw new EOFException();
+                        length -= bytes;
+                        remaining -= bytes;
+                        received += bytes;
+                    }
+                    break;
+                }
+                case MESSAGE:
+                case DIRECT_MESSAGE:
+                    WireMessage.read(dis);
+                    break;
+                case HISTORY:
+                    dis.readInt();
+                    for (int count = dis.readInt(); count > 0; count--) {
+                        WireMessage.read(dis);
+                    }
+                    break;
+                case PRESENCE:
+                    dis.readInt();
+                    skipRoster(dis);
+                    break;
+                case ROSTER:
+                    skipRoster(dis);
+                    break;
+                case HANDLE:
+                    dis.readInt();
+                    dis.readUTF();
+                    break;
+                default:
+                    throw new IOException("Unexpected response " + type);
+            }
+        }
+        return received;
+    }
+
+    private static void createFile(Path path, int sizeMb) throws IOException {
+        Files.createDirectories(path.getParent());
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+            for (int i = 0; i < sizeMb; i++) {
+                out.write(block);
+            }
+        }
+    }
+
+    /**
+     * Start the server in a child JVM, inside the benchmark's working directory
+     *
+     * @param dir      working directory holding the Files folder
+     * @param mode     server mode
+     * @param zeroCopy true to send downloads with transferTo in NIO mode
+     * @return server process
+     * @throws Exception
+     */
+    private static Process startServer(Path dir, String mode, String zeroCopy) throws Exception {
+        String java = System.getProperty("java.home") + "/bin/java";
+        Process process = new ProcessBuilder(java, "-Dchatroom.server.mode=" + mode, "-Dchatroom.transfer.zeroCopy=" + zeroCopy,
+                "-cp", System.getProperty("java.class.path"), "Server")
+                .directory(dir.toFile())
+                .redirectOutput(dir.resolve("server-" + mode + ".log").toFile())
+                .redirectErrorStream(true)
+                .start();
+
+        // Wait until the server accepts connections
+        for (int i = 0; i < 100; i++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("localhost", Server.SERVER_PORT));
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start, see " + dir.resolve("server-" + mode + ".log"));
+    }
+
+    /**
+     * User plus system CPU time of a process from /proc/<pid>/stat
+     *
+     * @param process server process
+     * @return CPU time in milliseconds, -1 if not available
+     */
+    private static long readCpuMillis(Process process) {
+        try {
+            String stat = Files.readString(Path.of("/proc/" + process.pid() + "/stat"));
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            // utime and stime are fields 14 and 15, in clock ticks of usually 10 ms
+            return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * 10;
+        } catch (IOException | RuntimeException e) {
+            // Not on Linux
+            return -1;
+        }
+    }
+}
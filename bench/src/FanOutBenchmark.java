@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server side cost of a broadcast against room size.
+ * Runs in process: a room of N connections whose writers drain into a sink channel, so only encoding,
+ * queueing and dequeueing are measured, not the network. Compares encoding the frame once for all recipients
+ * with encoding it again for each recipient, as the server did before frames were shared, and with copying it
+ * once into a direct buffer, as the NIO server does for large rooms. Writers release each frame once written,
+ * as the selector does, so a direct buffer goes back to its pool after the last recipient.
+ * Reports time and heap allocation per broadcast, split into the sender's fan-out and the writers' drain.
+ * <p>
+ * Usage: java FanOutBenchmark [broadcasts per recipient count] [message length]
+ * <br>
+ * Example: java FanOutBenchmark 200000 80
+ */
+public class FanOutBenchmark {
+    private static final int[] ROOM_SIZES = {10, 100, 1000, 10000};
+    private static final String[] STRATEGIES = {"per recipient", "encode once", "direct"};
+
+    public static void main(String[] args) throws Exception {
+        long work = args.length > 0 ? Long.parseLong(args[0]) : 200000;
+        int messageLength = args.length > 1 ? Integer.parseInt(args[1]) : 80;
+        String text = "x".repeat(messageLength);
+
+        System.out.printf("%-14s %10s %14s %14s %16s %14s%n",
+                "strategy", "recipients", "fan-out us", "drain us", "ns / recipient", "alloc KB");
+        for (int size : ROOM_SIZES) {
+            int rounds = (int) Math.max(20, work / size);
+            for (String strategy : STRATEGIES) {
+                Room room = new Room(size);
+                room.run(text, strategy, Math.max(10, rounds / 10));   // Warm up, also interns the sender's handle
+                room.run(text, strategy, rounds);
+                System.out.printf("%-14s %10d %14.1f %14.1f %16.1f %14.1f%n",
+                        strategy, size,
+                        room.fanOutNanos / 1e3 / rounds, room.drainNanos / 1e3 / rounds,
+                        (double) (room.fanOutNanos + room.drainNanos) / rounds / size,
+                        room.allocated / 1024.0 / rounds);
+            }
+        }
+    }
+
+    /**
+     * Connections of one room, written to a channel that drops everything
+     */
+    private static class Room {
+        final ChatRoom chatRoom = new ChatRoom("bench-room");
+        final List<ClientConnection> connections = new ArrayList<>();
+        final Sink sink = new Sink();
+        long fanOutNanos;
+        long drainNanos;
+        long allocated;
+
+        Room(int size) {
+            for (int i = 0; i < size; i++) {
+                connections.add(new ClientConnection(() -> {
+                }, () -> {
+                }));
+            }
+        }
+
+        void run(String text, String strategy, int rounds) throws IOException {
+            fanOutNanos = 0;
+            drainNanos = 0;
+            long allocatedBefore = allocatedBytes();
+            for (int round = 0; round < rounds; round++) {
+                ChatMessage message = ChatMessage.room("sender", text);
+                long start = System.nanoTime();
+                if (strategy.equals("per recipient")) {
+                    for (ClientConnection connection : connections) {
+                        connection.send(OutboundFrame.message(chatRoom, message));
+                    }
+                } else {
+                    OutboundFrame frame = OutboundFrame.message(chatRoom, message);
+                    if (strategy.equals("direct")) {
+                        frame = frame.toDirect();
+                    }
+                    for (ClientConnection connection : connections) {
+                        connection.send(frame);
+                    }
+                    frame.release();
+                }
+                long sent = System.nanoTime();
+                for (ClientConnection connection : connections) {
+                    OutboundFrame frame;
+                    while ((frame = connection.next()) != null) {
+                        sink.write(frame.getBuffer());
+                        frame.release();
+                    }
+                    connection.writeDone();
+                }
+                fanOutNanos += sent - start;
+                drainNanos += System.nanoTime() - sent;
+            }
+            allocated = allocatedBytes() - allocatedBefore;
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Channel that takes every byte and keeps none
+     */
+    private static class Sink implements WritableByteChannel {
+        long bytes;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            bytes += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
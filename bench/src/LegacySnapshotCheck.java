@@ -0,0 +1,68 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Conversion check of a room snapshot written by the original version of the server, which serialized
+ * ChatRoom as it was then: no journal sequence ahead of it, and its history as plain text entries.
+ * bench/data/ChatRoom_legacy.obj was written by that version's saveChatRoomHistory for room "legacy", with members
+ * alice (online) and bob, and the entries:
+ * <pre>
+ * [2023-11-14 22:13:20.0] alice: hello everyone
+ * bob-[2023-11-14 22:13:20.0] private message from @alice: psst bob
+ * alice-[2023-11-14 22:13:20.0] private message sent to @bob: psst bob
+ * [2023-11-14 22:13:20.0] bob: hi alice
+ * </pre>
+ * Prints the converted room and exits with status 1 if it does not match.
+ * <p>
+ * Usage: java LegacySnapshotCheck [snapshot file]
+ * <br>
+ * Example: java LegacySnapshotCheck bench/data/ChatRoom_legacy.obj
+ */
+public class LegacySnapshotCheck {
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : "bench/data/ChatRoom_legacy.obj";
+        RoomSnapshot snapshot;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(path))) {
+            snapshot = ChatRoomStore.readLegacySnapshot(in);
+        }
+        ChatRoom room = snapshot.getRoom();
+        List<String> failures = new ArrayList<>();
+        check(failures, "room id", "legacy", room.getId());
+        check(failures, "journal sequence", 0L, snapshot.getSeq());
+        check(failures, "members", 2, room.getUsers().size());
+        for (String username : new String[]{"alice", "bob"}) {
+            User user = room.getUserByUsername(username);
+            check(failures, username + "'s id", "id-" + username, user == null ? null : user.getId());
+        }
+
+        List<ChatMessage> history = room.getChatHistoryBefore(Integer.MAX_VALUE, 10, "alice").getMessages();
+        for (ChatMessage message : history) {
+            System.out.println(message.getVisibility() + " " + Arrays.toString(message.getRecipients()) + " " + message.getText());
+        }
+        // Alice sees both room messages and her copy of the private message, not the copy kept for bob
+        check(failures, "messages alice sees", 3, history.size());
+        if (history.size() == 3) {
+            check(failures, "first message", "[2023-11-14 22:13:20.0] alice: hello everyone", history.get(0).getText());
+            check(failures, "private message", Visibility.direct, history.get(1).getVisibility());
+            check(failures, "private message text", "[2023-11-14 22:13:20.0] private message sent to @bob: psst bob", history.get(1).getText());
+            check(failures, "last message", "[2023-11-14 22:13:20.0] bob: hi alice", history.get(2).getText());
+        }
+        check(failures, "messages bob sees", 3, room.getChatHistoryBefore(Integer.MAX_VALUE, 10, "bob").getMessages().size());
+
+        if (!failures.isEmpty()) {
+            failures.forEach(System.out::println);
+            System.exit(1);
+        }
+        System.out.println("Original snapshot converted");
+    }
+
+    private static void check(List<String> failures, String what, Object expected, Object actual) {
+        if (!expected.equals(actual)) {
+            failures.add(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,624 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator and end-to-end benchmark of the server. Simulates many users spread over rooms,
+ * speaking the same protocol as the JavaFX client. Each user sends room messages, private messages and
+ * uploads at random (Poisson) times, and leaves and joins again at the churn rate. Every message carries its
+ * send time, so each copy a user receives gives the end-to-end latency of that delivery. Reports throughput
+ * and latency percentiles of deliveries, joins (login until the roster arrives) and uploads (start until the
+ * room is notified), measured after a warm-up.
+ * Users are driven by a few selector threads, so thousands of them fit in one small JVM.
+ * By default a server is started in a child JVM in a temporary directory, and stopped at the end.
+ * <p>
+ * Usage: java LoadGenerator [name=value]...
+ * <br>
+ * Settings, with their defaults:
+ * mode=thread (server mode of the started server, or none to use a running one), host=localhost, port=8080,
+ * users=1000, rooms=50, rate=0.2 (messages per user and second), dm=0.1 (share of private messages),
+ * churn=0.01 (leaves per user and second), uploads=0.001 (share of actions that are uploads), uploadKb=64,
+ * textLength=80, warmup=5 and duration=30 (seconds), drivers=(processors), heap=1g (of the started server),
+ * maxP99Ms=0 (exit with status 1 if the p99 room delivery latency is higher, 0 to only report)
+ * <br>
+ * Example: java LoadGenerator mode=nio users=5000 rooms=100 rate=0.5 duration=60 maxP99Ms=50
+ * <br>
+ * Raise the open file limit first (ulimit -n) when simulating thousands of users
+ */
+public class LoadGenerator {
+    private static final String MARK = "lg ";    // Start of every generated message, followed by the send time
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Map<String, String> settings;
+    private final String host;
+    private final int port;
+    private final int userCount;
+    private final int rooms;
+    private final double rate;
+    private final double dmRatio;
+    private final double churn;
+    private final double uploadRatio;
+    private final int uploadSize;
+    private final String padding;
+    private volatile Stats stats = new Stats();
+    private volatile boolean running = true;
+
+    private LoadGenerator(Map<String, String> settings) {
+        this.settings = settings;
+        this.host = setting("host", "localhost");
+        this.port = Integer.parseInt(setting("port", Integer.toString(Server.SERVER_PORT)));
+        this.userCount = Integer.parseInt(setting("users", "1000"));
+        this.rooms = Math.max(1, Math.min(userCount, Integer.parseInt(setting("rooms", "50"))));
+        this.rate = Double.parseDouble(setting("rate", "0.2"));
+        this.dmRatio = Double.parseDouble(setting("dm", "0.1"));
+        this.churn = Double.parseDouble(setting("churn", "0.01"));
+        this.uploadRatio = Double.parseDouble(setting("uploads", "0.001"));
+        this.uploadSize = Integer.parseInt(setting("uploadKb", "64")) * 1024;
+        this.padding = " " + "x".repeat(Math.max(0, Integer.parseInt(setting("textLength", "80")) - 24));
+    }
+
+    private String setting(String name, String defaultValue) {
+        return settings.getOrDefault(name, defaultValue);
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        System.exit(new LoadGenerator(settings).run());
+    }
+
+    /**
+     * Run the load and print the report
+     *
+     * @return exit status, 1 if the latency goal was missed
+     * @throws Exception
+     */
+    private int run() throws Exception {
+        String mode = setting("mode", "thread");
+        Process server = mode.equals("none") ? null : startServer(mode, setting("heap", "1g"));
+        int warmup = Integer.parseInt(setting("warmup", "5"));
+        int duration = Integer.parseInt(setting("duration", "30"));
+        int driverCount = Math.max(1, Integer.parseInt(setting("drivers", Integer.toString(Runtime.getRuntime().availableProcessors()))));
+
+        ArrayList<Driver> drivers = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        try {
+            for (int i = 0; i < driverCount; i++) {
+                drivers.add(new Driver());
+            }
+            for (int i = 0; i < userCount; i++) {
+                drivers.get(i % driverCount).add(new SimUser(i));
+            }
+            for (int i = 0; i < driverCount; i++) {
+                Thread thread = new Thread(drivers.get(i), "load-driver-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+
+            Thread.sleep(warmup * 1000L);
+            stats = new Stats();
+            long start = System.nanoTime();
+            for (int second = 1; second <= duration; second++) {
+                Thread.sleep(1000);
+                if (server != null && !server.isAlive()) {
+                    System.out.println("Server died after " + second + "s");
+                    break;
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Stats result = stats;
+            running = false;
+            for (Thread thread : threads) {
+                thread.join(5000);
+            }
+            return report(mode, result, seconds);
+        } finally {
+            running = false;
+            if (server != null) {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    private int report(String mode, Stats result, double seconds) {
+        System.out.printf("mode %s, %d users in %d rooms, %.2f messages/user/s, dm %.2f, churn %.3f/user/s, uploads %.4f of %d KB, %.0fs%n",
+                mode, userCount, rooms, rate, dmRatio, churn, uploadRatio, uploadSize / 1024, seconds);
+        System.out.printf("sent      %10.1f msg/s (%d room, %d private, %d uploads), %d joins, %d errors%n",
+                (result.roomSent.sum() + result.dmSent.sum()) / seconds, result.roomSent.sum(), result.dmSent.sum(),
+                result.uploadsSent.sum(), result.joins.sum(), result.errors.sum());
+        System.out.printf("delivered %10.1f msg/s, received %.1f MB/s%n",
+                (result.roomDelivery.getCount() + result.dmDelivery.getCount()) / seconds,
+                result.bytesIn.sum() / seconds / (1024 * 1024));
+        System.out.printf("%-16s %10s %9s %9s %9s %9s %9s %9s%n", "latency ms", "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+        print("room delivery", result.roomDelivery);
+        print("private delivery", result.dmDelivery);
+        print("join", result.join);
+        print("upload", result.upload);
+
+        double goal = Double.parseDouble(setting("maxP99Ms", "0"));
+        double p99 = result.roomDelivery.getPercentile(99) / 1000.0;
+        if (goal > 0 && p99 > goal) {
+            System.out.printf("FAILED: p99 room delivery %.2f ms is over %.2f ms%n", p99, goal);
+            return 1;
+        }
+        return 0;
+    }
+
+    private static void print(String name, LatencyHistogram histogram) {
+        System.out.printf("%-16s %10d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, histogram.getCount(),
+                histogram.getMean() / 1000, histogram.getPercentile(50) / 1000.0, histogram.getPercentile(90) / 1000.0,
+                histogram.getPercentile(99) / 1000.0, histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+
+    /**
+     * Start the server in a child JVM, inside a temporary working directory
+     *
+     * @param mode server mode
+     * @param heap max heap of the server
+     * @return server process
+     * @throws Exception
+     */
+    private Process startServer(String mode, String heap) throws Exception {
+        Path dir = Files.createTempDirectory("chatroom-loadgen");
+        String java = System.getProperty("java.home") + "/bin/java";
+        Process process = new ProcessBuilder(java, "-Xmx" + heap, "-Dchatroom.server.mode=" + mode,
+                "-Dchatroom.server.port=" + port, "-cp", System.getProperty("java.class.path"), "Server")
+                .directory(dir.toFile())
+                .redirectOutput(dir.resolve("server.log").toFile())
+                .redirectErrorStream(true)
+                .start();
+
+        // Wait until the server accepts connections
+        for (int i = 0; i < 100; i++) {
+            try {
+                SocketChannel.open(new InetSocketAddress(host, port)).close();
+                System.out.println("Server log in " + dir.resolve("server.log"));
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start, see " + dir.resolve("server.log"));
+    }
+
+    /**
+     * Time of the next event of a Poisson process
+     *
+     * @param now       current time, in nanoseconds
+     * @param perSecond event rate
+     * @return time of the next event, Long.MAX_VALUE for a rate of 0
+     */
+    private static long next(long now, double perSecond) {
+        if (perSecond <= 0) return Long.MAX_VALUE;
+        return now + (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) / perSecond * 1e9);
+    }
+
+    /**
+     * Counters of one measurement period
+     */
+    private static class Stats {
+        final LongAdder roomSent = new LongAdder();
+        final LongAdder dmSent = new LongAdder();
+        final LongAdder uploadsSent = new LongAdder();
+        final LongAdder joins = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LatencyHistogram roomDelivery = new LatencyHistogram();
+        final LatencyHistogram dmDelivery = new LatencyHistogram();
+        final LatencyHistogram join = new LatencyHistogram();
+        final LatencyHistogram upload = new LatencyHistogram();
+    }
+
+    /**
+     * Selector thread driving a share of the users: their sockets, and their actions when due
+     */
+    private class Driver implements Runnable {
+        private final Selector selector;
+        private final PriorityQueue<Wake> timers = new PriorityQueue<>(Comparator.comparingLong((Wake wake) -> wake.at));
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(256 * 1024);
+
+        Driver() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SimUser user) {
+            user.driver = this;
+            // Spread the first logins over the first second
+            schedule(user, System.nanoTime() + ThreadLocalRandom.current().nextLong(TimeUnit.SECONDS.toNanos(1)));
+        }
+
+        void schedule(SimUser user, long at) {
+            user.generation++;
+            timers.add(new Wake(at, user, user.generation));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long now = System.nanoTime();
+                    Wake next;
+                    while ((next = timers.peek()) != null && next.at <= now) {
+                        timers.poll();
+                        if (next.generation == next.user.generation) {
+                            next.user.wake(now);
+                        }
+                    }
+                    long waitMs = next == null ? 100 : Math.max(1, Math.min(100, (next.at - now) / 1_000_000));
+                    selector.select(waitMs);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SimUser user = (SimUser) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                user.connected();
+                            } else {
+                                if (key.isReadable()) {
+                                    user.readable(readBuffer);
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    user.flush();
+                                }
+                            }
+                        } catch (IOException e) {
+                            if (running) {
+                                stats.errors.increment();
+                            }
+                            user.disconnect();
+                            schedule(user, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((SimUser) key.attachment()).disconnect();
+                }
+            }
+        }
+    }
+
+    private static class Wake {
+        final long at;
+        final SimUser user;
+        final int generation;   // Stale if the user was scheduled again since
+
+        Wake(long at, SimUser user, int generation) {
+            this.at = at;
+            this.user = user;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * One simulated user. Logs in, then acts at random times until it leaves, and joins again right away
+     */
+    private class SimUser {
+        final String username;
+        final String room;
+        final int index;
+        Driver driver;
+        int generation;
+        SocketChannel channel;
+        SelectionKey key;
+        String connectHost = host;
+        int connectPort = port;
+        ByteBuffer input = ByteBuffer.allocate(16 * 1024);
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        long loginStart;
+        boolean joined;
+        long nextAction;
+        long leaveAt;
+        int nextTransfer;
+        final HashMap<Integer, byte[]> uploads = new HashMap<>();    // Content of uploads waiting for UPLOAD_READY, mapped with transfer id
+        final HashMap<String, Long> uploadStarts = new HashMap<>();  // Start time of uploads, mapped with file name
+
+        SimUser(int index) {
+            this.index = index;
+            this.username = "lg-" + index;
+            this.room = "lg-room-" + (index % rooms);
+        }
+
+        /**
+         * Timer is due: connect, act, or leave
+         */
+        void wake(long now) throws IOException {
+            if (channel == null) {
+                connect();
+                return;
+            }
+            if (!joined) return;
+            if (now >= leaveAt) {
+                send((out) -> out.writeInt(RequestType.LOGOUT.ordinal()));
+                flush();
+                disconnect();
+                driver.schedule(this, now);
+                return;
+            }
+            act();
+            nextAction = next(now, rate);
+            driver.schedule(this, Math.min(nextAction, leaveAt));
+        }
+
+        private void connect() throws IOException {
+            loginStart = System.nanoTime();
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (channel.connect(new InetSocketAddress(connectHost, connectPort))) {
+                key = channel.register(driver.selector, SelectionKey.OP_READ, this);
+                login();
+            } else {
+                key = channel.register(driver.selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        void connected() throws IOException {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            login();
+        }
+
+        private void login() throws IOException {
+            send((out) -> {
+                out.writeUTF(username);
+                out.writeUTF(room);
+                out.writeInt(RequestType.USERS.ordinal());
+            });
+        }
+
+        void disconnect() {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            channel = null;
+            key = null;
+            joined = false;
+            input.clear();
+            output.clear();
+            uploads.clear();
+            uploadStarts.clear();
+        }
+
+        private void act() throws IOException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String text = MARK + System.nanoTime() + padding;
+            int members = (userCount - index % rooms + rooms - 1) / rooms;     // Users of this room: index % rooms, then every rooms-th
+            if (random.nextDouble() < uploadRatio) {
+                startUpload();
+            } else if (members > 1 && random.nextDouble() < dmRatio) {
+                // Another member of the same room, who may be offline at the moment
+                int other = index % rooms + rooms * random.nextInt(members - 1);
+                if (other >= index) {
+                    other += rooms;
+                }
+                String message = "@lg-" + other + " " + text;
+                send((out) -> {
+                    out.writeInt(RequestType.MESSAGE.ordinal());
+                    WireMessage.writeText(out, message);
+                });
+                stats.dmSent.increment();
+            } else {
+                send((out) -> {
+                    out.writeInt(RequestType.MESSAGE.ordinal());
+                    WireMessage.writeText(out, text);
+                });
+                stats.roomSent.increment();
+            }
+        }
+
+        private void startUpload() throws IOException {
+            byte[] content = new byte[uploadSize];
+            ThreadLocalRandom.current().nextBytes(content);
+            int transferId = ++nextTransfer;
+            String filename = username + "-" + transferId + ".bin";
+            uploads.put(transferId, content);
+            uploadStarts.put(filename, System.nanoTime());
+            String hash = sha256(content);
+            send((out) -> {
+                out.writeInt(RequestType.UPLOAD.ordinal());
+                out.writeInt(transferId);
+                out.writeUTF(filename);
+                out.writeLong(content.length);
+                out.writeLong(0);
+                out.writeUTF(hash);
+            });
+            stats.uploadsSent.increment();
+        }
+
+        private void sendUpload(int transferId, long offset) throws IOException {
+            byte[] content = uploads.remove(transferId);
+            if (content == null) return;
+            String hash = sha256(content);
+            for (int position = (int) offset; position < content.length; position += CHUNK_SIZE) {
+                int from = position;
+                int length = Math.min(CHUNK_SIZE, content.length - position);
+                send((out) -> {
+                    out.writeInt(RequestType.UPLOAD_CHUNK.ordinal());
+                    out.writeInt(transferId);
+                    out.writeInt(length);
+                    out.write(content, from, length);
+                });
+            }
+            send((out) -> {
+                out.writeInt(RequestType.UPLOAD_DONE.ordinal());
+                out.writeInt(transferId);
+                out.writeUTF(hash);
+            });
+        }
+
+        private void send(OutboundFrame.Body request) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            request.write(new DataOutputStream(bytes));
+            output.add(ByteBuffer.wrap(bytes.toByteArray()));
+            if (key != null && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+                flush();
+            }
+        }
+
+        /**
+         * Write what the socket takes, and wait for it to take the rest
+         */
+        void flush() throws IOException {
+            if (channel == null) return;
+            while (!output.isEmpty()) {
+                ByteBuffer buffer = output.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) break;
+                output.poll();
+            }
+            key.interestOps(output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void readable(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) throw new EOFException("Server closed the connection of " + username);
+            stats.bytesIn.add(read);
+            buffer.flip();
+            if (input.remaining() < buffer.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(input.capacity() * 2, input.position() + buffer.remaining()));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+            input.put(buffer);
+
+            // Handle every complete frame, a partial one waits for more bytes
+            input.flip();
+            while (input.hasRemaining()) {
+                ByteArrayInputStream bytes = new ByteArrayInputStream(input.array(), input.position(), input.remaining());
+                try {
+                    handle(new DataInputStream(bytes));
+                } catch (EOFException e) {
+                    break;
+                }
+                if (channel == null) return;    // Redirected
+                input.position(input.limit() - bytes.available());
+            }
+            input.compact();
+        }
+
+        private void handle(DataInputStream in) throws IOException {
+            ResponseType type = ResponseType.values()[in.readInt()];
+            long now = System.nanoTime();
+            switch (type) {
+                case MESSAGE:
+                    delivered(WireMessage.read(in), now);
+                    break;
+                case DIRECT_MESSAGE: {
+                    WireMessage message = WireMessage.read(in);
+                    if (message != null && message.getKind() == LineKind.error) {
+                        // Recipient offline, expected with churn
+                        break;
+                    }
+                    delivered(message, now);
+                    break;
+                }
+                case HISTORY:
+                    in.readInt();
+                    for (int count = in.readInt(); count > 0; count--) {
+                        WireMessage.read(in);
+                    }
+                    break;
+                case HANDLE:
+                    in.readInt();
+                    in.readUTF();
+                    break;
+                case PRESENCE:
+                    in.readInt();
+                    skipRoster(in);
+                    break;
+                case ROSTER:
+                    skipRoster(in);
+                    if (!joined) {
+                        joined = true;
+                        stats.join.record(now - loginStart);
+                        stats.joins.increment();
+                        nextAction = next(now, rate);
+                        leaveAt = next(now, churn);
+                        driver.schedule(this, Math.min(nextAction, leaveAt));
+                    }
+                    break;
+                case UPLOAD_READY: {
+                    int transferId = in.readInt();
+                    long offset = in.readLong();
+                    sendUpload(transferId, offset);
+                    break;
+                }
+                case UPLOAD: {
+                    Long start = uploadStarts.remove(in.readUTF());
+                    if (start != null) {
+                        stats.upload.record(now - start);
+                    }
+                    break;
+                }
+                case REDIRECT:
+                    // Cluster node that owns the room
+                    connectHost = in.readUTF();
+                    connectPort = in.readInt();
+                    disconnect();
+                    driver.schedule(this, now);
+                    break;
+                default:
+                    throw new IOException("Unexpected response " + type);
+            }
+        }
+
+        private void delivered(WireMessage message, long now) {
+            if (message == null || !message.getText().startsWith(MARK)) return;
+            String text = message.getText();
+            int end = text.indexOf(' ', MARK.length());
+            long sent = Long.parseLong(text.substring(MARK.length(), end < 0 ? text.length() : end));
+            if (message.getKind() == LineKind.direct) {
+                stats.dmDelivery.record(now - sent);
+            } else {
+                stats.roomDelivery.record(now - sent);
+            }
+        }
+    }
+
+    /**
+     * Read a roster, or the rest of a presence delta, which is laid out the same after its base version
+     *
+     * @throws IOException
+     */
+    private static void skipRoster(DataInputStream in) throws IOException {
+        in.readInt();
+        for (int count = in.readInt(); count > 0; count--) {
+            in.readInt();
+            in.readUTF();
+            in.readByte();
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        MessageDigest digest = Checksums.newDigest();
+        digest.update(content);
+        return Checksums.toHex(digest.digest());
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several server nodes in one JVM, connected by a {@link LocalBus}, for trying cluster mode on one machine.
+ * Node i serves clients on port (first port + i). A client connecting to any node is sent to the owner of its room.
+ * Every node uses the ./ChatRooms, ./Files and ./Blobs directories of the working directory.
+ * For nodes in separate JVMs, start each Server with -Dchatroom.cluster.nodes, -Dchatroom.cluster.self
+ * and -Dchatroom.server.port instead, and they talk over the TCP bus
+ * <p>
+ * Usage: java LocalCluster [nodes] [first port]
+ * <br>
+ * Example: java LocalCluster 3 8080
+ */
+public class LocalCluster {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int firstPort = args.length > 1 ? Integer.parseInt(args[1]) : Server.SERVER_PORT;
+
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add("localhost:" + (firstPort + i));
+        }
+        for (int i = 0; i < count; i++) {
+            Server server = new Server(firstPort + i, new Cluster(nodes.get(i), nodes, new LocalBus()));
+            server.loadPrevSessionInfo();
+            Thread node = new Thread(server::execute, "node-" + (firstPort + i));
+            node.start();
+        }
+        System.out.println("Cluster of " + nodes + " running");
+    }
+}
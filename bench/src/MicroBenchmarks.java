@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks of the server's hot paths, in the manner of JMH: each benchmark runs for warm-up iterations
+ * and then measured iterations of a fixed time, and every result goes to a sink so the JIT cannot drop the work.
+ * Benchmarks run for every room size and history length they depend on, and report the mean time per operation
+ * with the spread between iterations. Rooms are built in memory, nothing is read from or written to disk
+ * <ul>
+ * <li>broadcast: a room message encoded once and queued to every online member, then drained as the writers do</li>
+ * <li>toDirect: a room message copied to a direct buffer and released, as broadcasts to large NIO rooms are</li>
+ * <li>parseUsersAndMessage: a private message split into its tagged usernames and text</li>
+ * <li>historyPage: the newest page of history a member can see, filtered from the room's history and encoded</li>
+ * <li>getUserByUsername: a member looked up by username</li>
+ * <li>getOnlineUsers: the online members walked, half of the room</li>
+ * <li>snapshot: the room written in the snapshot format, as saveChatRoomHistory does, to a stream that keeps nothing</li>
+ * </ul>
+ * <p>
+ * Usage: java MicroBenchmarks [benchmark name regex] [measured iterations] [iteration ms]
+ * <br>
+ * Example: java MicroBenchmarks "broadcast|historyPage" 5 1000
+ */
+public class MicroBenchmarks {
+    private static final int[] ROOM_SIZES = {10, 1000, 10000};
+    private static final int[] HISTORY_LENGTHS = {1000, 100000};
+    private static final int DEFAULT_ROOM_SIZE = 100;           // For benchmarks that do not depend on the room size
+    private static final int DEFAULT_HISTORY_LENGTH = 1000;     // For benchmarks that do not depend on the history length
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MESSAGE_LENGTH = 80;
+
+    private static volatile long sink;  // Every result is added here
+
+    public static void main(String[] args) throws IOException {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long iterationNanos = (args.length > 2 ? Long.parseLong(args[2]) : 1000) * 1000000;
+        // Every message stays in memory, so no history segment is written. Set before ServerConfig is loaded
+        System.setProperty("chatroom.history.memoryCapacity", Integer.toString(HISTORY_LENGTHS[HISTORY_LENGTHS.length - 1]));
+
+        List<Benchmark> benchmarks = List.of(
+                new Benchmark("broadcast", true, false, MicroBenchmarks::broadcast),
+                new Benchmark("toDirect", false, false, MicroBenchmarks::toDirect),
+                new Benchmark("parseUsersAndMessage", false, false, MicroBenchmarks::parseUsersAndMessage),
+                new Benchmark("historyPage", true, true, MicroBenchmarks::historyPage),
+                new Benchmark("getUserByUsername", true, false, MicroBenchmarks::getUserByUsername),
+                new Benchmark("getOnlineUsers", true, false, MicroBenchmarks::getOnlineUsers),
+                new Benchmark("snapshot", true, true, MicroBenchmarks::snapshot));
+
+        System.out.printf("%-22s %10s %10s %14s %12s %14s%n", "benchmark", "room size", "history", "ns / op", "error", "ops");
+        for (Benchmark benchmark : benchmarks) {
+            if (!filter.matcher(benchmark.name).find()) continue;
+            for (int roomSize : benchmark.bySize ? ROOM_SIZES : new int[]{DEFAULT_ROOM_SIZE}) {
+                for (int historyLength : benchmark.byHistory ? HISTORY_LENGTHS : new int[]{DEFAULT_HISTORY_LENGTH}) {
+                    Operation operation = benchmark.setup.create(new Fixture(roomSize, historyLength));
+                    System.gc();
+                    Result result = measure(operation, iterations, iterationNanos);
+                    System.out.printf("%-22s %10s %10s %14.1f %12.1f %14d%n", benchmark.name,
+                            benchmark.bySize ? Integer.toString(roomSize) : "-",
+                            benchmark.byHistory ? Integer.toString(historyLength) : "-",
+                            result.mean, result.error, result.operations);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run warm-up iterations, then measured ones
+     *
+     * @param operation      benchmarked operation
+     * @param iterations     measured iterations
+     * @param iterationNanos time of each iteration
+     * @return time per operation over the measured iterations
+     * @throws IOException
+     */
+    private static Result measure(Operation operation, int iterations, long iterationNanos) throws IOException {
+        // Operations run in batches so reading the clock costs nothing next to them, the warm-up sizes the batch
+        long batch = 1;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            long[] run = iterate(operation, batch, iterationNanos);
+            batch = Math.max(1, run[1] * 1000000 / Math.max(1, run[0]) / 10);     // About a tenth of a millisecond
+        }
+        double[] times = new double[iterations];
+        long operations = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] run = iterate(operation, batch, iterationNanos);
+            times[i] = (double) run[0] / run[1];
+            operations += run[1];
+        }
+
+        double mean = 0;
+        for (double time : times) {
+            mean += time / iterations;
+        }
+        double variance = 0;
+        for (double time : times) {
+            variance += (time - mean) * (time - mean) / Math.max(1, iterations - 1);
+        }
+        return new Result(mean, Math.sqrt(variance), operations);
+    }
+
+    /**
+     * @return nanoseconds spent and operations run
+     */
+    private static long[] iterate(Operation operation, long batch, long iterationNanos) throws IOException {
+        long operations = 0;
+        long result = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (long i = 0; i < batch; i++) {
+                result += operation.run();
+            }
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        sink += result;
+        return new long[]{elapsed, operations};
+    }
+
+    private static Operation broadcast(Fixture fixture) {
+        List<ClientConnection> connections = new ArrayList<>();
+        for (int i = 0; i < fixture.roomSize; i++) {
+            connections.add(new ClientConnection(() -> {
+            }, () -> {
+            }));
+        }
+        String text = "x".repeat(MESSAGE_LENGTH);
+        Sink channel = new Sink();
+        return () -> {
+            // The frame is encoded once and queued to every member, as broadCastMessage does
+            ChatMessage chat = ChatMessage.room(fixture.usernames[0], text);
+            OutboundFrame frame = OutboundFrame.message(fixture.room, chat);
+            for (ClientConnection connection : connections) {
+                connection.send(frame);
+            }
+            for (ClientConnection connection : connections) {
+                OutboundFrame next;
+                while ((next = connection.next()) != null) {
+                    channel.write(next.getBuffer());
+                }
+                connection.writeDone();
+            }
+            return channel.bytes;
+        };
+    }
+
+    private static Operation toDirect(Fixture fixture) {
+        OutboundFrame frame = OutboundFrame.message(fixture.room, ChatMessage.room(fixture.usernames[0], "x".repeat(MESSAGE_LENGTH)));
+        return () -> {
+            OutboundFrame direct = frame.toDirect();
+            long bytes = direct.getBuffer().remaining();
+            direct.release();
+            return bytes;
+        };
+    }
+
+    private static Operation parseUsersAndMessage(Fixture fixture) {
+        String message = "@" + fixture.usernames[1] + " @" + fixture.usernames[2] + " @" + fixture.usernames[3] + " "
+                + "x".repeat(MESSAGE_LENGTH);
+        return () -> Server.parseUsersAndMessage(message).getKey().size();
+    }
+
+    private static Operation historyPage(Fixture fixture) {
+        Random random = new Random(7);
+        return () -> {
+            String username = fixture.usernames[random.nextInt(fixture.usernames.length)];
+            HistoryPage page = fixture.room.getChatHistoryBefore(Integer.MAX_VALUE, ServerConfig.HISTORY_PAGE_SIZE, username);
+            return OutboundFrame.history(page.getCursor(), fixture.room, page.getMessages()).getBuffer().remaining();
+        };
+    }
+
+    private static Operation getUserByUsername(Fixture fixture) {
+        Random random = new Random(7);
+        return () -> fixture.room.getUserByUsername(fixture.usernames[random.nextInt(fixture.usernames.length)]).hashCode();
+    }
+
+    private static Operation getOnlineUsers(Fixture fixture) {
+        return () -> {
+            long online = 0;
+            for (User user : fixture.room.getOnlineUsers()) {
+                online += user.getUsername().length();
+            }
+            return online;
+        };
+    }
+
+    private static Operation snapshot(Fixture fixture) {
+        Discard out = new Discard();
+        return () -> {
+            RoomSnapshot.write(fixture.room, 1, out);
+            return out.bytes;
+        };
+    }
+
+    /**
+     * Chat room with its members, half of them online, and its history, one private message in ten
+     */
+    private static class Fixture {
+        final int roomSize;
+        final ChatRoom room = new ChatRoom("bench-room");
+        final String[] usernames;
+
+        Fixture(int roomSize, int historyLength) {
+            this.roomSize = roomSize;
+            Random random = new Random(42);
+            usernames = new String[Math.max(4, roomSize)];
+            for (int i = 0; i < usernames.length; i++) {
+                usernames[i] = "user" + i;
+                String id = UUID.randomUUID().toString();
+                room.addUser(id, new User(id, usernames[i], i % 2 == 0 ? Status.online : Status.offline));
+            }
+            StringBuilder text = new StringBuilder();
+            long timestamp = System.currentTimeMillis() - historyLength * 1000L;
+            for (int i = 0; i < historyLength; i++) {
+                text.setLength(0);
+                while (text.length() < MESSAGE_LENGTH) {
+                    text.append("word").append(random.nextInt(1000)).append(' ');
+                }
+                timestamp += random.nextInt(2000);
+                String sender = usernames[random.nextInt(usernames.length)];
+                if (random.nextInt(10) == 0) {
+                    String[] recipients = {usernames[random.nextInt(usernames.length)]};
+                    room.addChatHistory(new ChatMessage(timestamp, Visibility.direct, sender, recipients, text.toString()));
+                } else {
+                    room.addChatHistory(new ChatMessage(timestamp, Visibility.room, sender, new String[0], text.toString()));
+                }
+            }
+        }
+    }
+
+    /**
+     * One operation of a benchmark
+     */
+    private interface Operation {
+        /**
+         * @return any value computed from the result, added to the sink
+         * @throws IOException
+         */
+        long run() throws IOException;
+    }
+
+    /**
+     * Creates a benchmark's operation on a fixture
+     */
+    private interface Setup {
+        Operation create(Fixture fixture) throws IOException;
+    }
+
+    private static class Benchmark {
+        final String name;
+        final boolean bySize;       // Run for each room size
+        final boolean byHistory;    // Run for each history length
+        final Setup setup;
+
+        Benchmark(String name, boolean bySize, boolean byHistory, Setup setup) {
+            this.name = name;
+            this.bySize = bySize;
+            this.byHistory = byHistory;
+            this.setup = setup;
+        }
+    }
+
+    private static class Result {
+        final double mean;      // Nanoseconds per operation
+        final double error;     // Standard deviation between iterations
+        final long operations;
+
+        Result(double mean, double error, long operations) {
+            this.mean = mean;
+            this.error = error;
+            this.operations = operations;
+        }
+    }
+
+    /**
+     * Channel that takes every byte and keeps none
+     */
+    private static class Sink implements WritableByteChannel {
+        long bytes;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            bytes += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Stream that counts its bytes and keeps none
+     */
+    private static class Discard extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
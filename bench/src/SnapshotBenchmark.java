@@ -0,0 +1,110 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Room snapshot cost of the binary {@link RoomSnapshot} format against Java serialization, as earlier versions wrote it.
+ * Builds rooms of 1k, 100k and 1M messages held in memory, with one member per 100 messages (at most 1000)
+ * and one private message in ten, writes each room to a temporary file in both formats and reads it back,
+ * reporting write and read time and file size.
+ * Java serialized snapshots need a heap several times the file size, run with -Xmx2g or more for 1M messages
+ * <p>
+ * Usage: java SnapshotBenchmark [rounds] [message length]
+ * <br>
+ * Example: java -Xmx3g SnapshotBenchmark 3 60
+ */
+public class SnapshotBenchmark {
+    private static final int[] ROOM_SIZES = {1000, 100000, 1000000};
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int messageLength = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        // Every message stays in memory, so the snapshot holds all of them. Set before ServerConfig is loaded
+        System.setProperty("chatroom.history.memoryCapacity", Integer.toString(ROOM_SIZES[ROOM_SIZES.length - 1]));
+
+        Path dir = Files.createTempDirectory("snapshot-bench");
+        File file = dir.resolve("room.snapshot").toFile();
+        System.out.printf("%-10s %10s %12s %12s %12s%n", "format", "messages", "write ms", "read ms", "size KB");
+        for (int size : ROOM_SIZES) {
+            ChatRoom room = buildRoom(size, messageLength);
+            for (boolean binary : new boolean[]{false, true}) {
+                // First round warms up
+                long writeNanos = 0;
+                long readNanos = 0;
+                for (int i = 0; i <= rounds; i++) {
+                    long start = System.nanoTime();
+                    write(room, file, binary);
+                    long written = System.nanoTime();
+                    ChatRoom read = read(file, binary);
+                    long end = System.nanoTime();
+                    if (read.getUsers().size() != room.getUsers().size()) {
+                        throw new IllegalStateException("Room read back with " + read.getUsers().size() + " members");
+                    }
+                    if (i > 0) {
+                        writeNanos += written - start;
+                        readNanos += end - written;
+                    }
+                }
+                System.out.printf("%-10s %10d %12.1f %12.1f %12d%n", binary ? "binary" : "java", size,
+                        writeNanos / 1e6 / rounds, readNanos / 1e6 / rounds, file.length() / 1024);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(dir);
+    }
+
+    private static ChatRoom buildRoom(int messages, int messageLength) {
+        Random random = new Random(42);
+        ChatRoom room = new ChatRoom("bench-room");
+        int memberCount = Math.max(2, Math.min(1000, messages / 100));
+        String[] usernames = new String[memberCount];
+        for (int i = 0; i < memberCount; i++) {
+            usernames[i] = "user" + i;
+            String id = UUID.randomUUID().toString();
+            room.addUser(id, new User(id, usernames[i], Status.offline));
+        }
+        StringBuilder text = new StringBuilder();
+        long timestamp = System.currentTimeMillis() - messages * 1000L;
+        for (int i = 0; i < messages; i++) {
+            text.setLength(0);
+            while (text.length() < messageLength) {
+                text.append("word").append(random.nextInt(1000)).append(' ');
+            }
+            timestamp += random.nextInt(2000);
+            String sender = usernames[random.nextInt(memberCount)];
+            if (random.nextInt(10) == 0) {
+                String[] recipients = {usernames[random.nextInt(memberCount)]};
+                room.addChatHistory(new ChatMessage(timestamp, Visibility.direct, sender, recipients, text.toString()));
+            } else {
+                room.addChatHistory(new ChatMessage(timestamp, Visibility.room, sender, new String[0], text.toString()));
+            }
+        }
+        return room;
+    }
+
+    private static void write(ChatRoom room, File file, boolean binary) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+            if (binary) {
+                RoomSnapshot.write(room, 1, out);
+            } else {
+                ObjectOutputStream oos = new ObjectOutputStream(out);
+                oos.writeLong(1);
+                oos.writeObject(room);
+                oos.flush();
+            }
+        }
+    }
+
+    private static ChatRoom read(File file, boolean binary) throws IOException, ClassNotFoundException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            if (binary) {
+                return RoomSnapshot.read(in).getRoom();
+            }
+            ObjectInputStream ois = new ObjectInputStream(in);
+            ois.readLong();
+            return (ChatRoom) ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Pool of fixed size buffers: byte arrays for file transfer chunks, direct buffers for broadcast frames.
+ * A transfer holds one buffer for its lifetime, so its memory does not depend on the file size
+ *
+ * @param <T> buffer type
+ */
+public class BufferPool<T> {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final IntFunction<T> allocator;
+    private final ToIntFunction<T> capacity;
+    private final ConcurrentLinkedQueue<T> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled, IntFunction<T> allocator, ToIntFunction<T> capacity) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.allocator = allocator;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param bufferSize bytes per array
+     * @param maxPooled  arrays kept at most
+     * @return pool of byte arrays
+     */
+    public static BufferPool<byte[]> arrays(int bufferSize, int maxPooled) {
+        return new BufferPool<>(bufferSize, maxPooled, byte[]::new, (buffer) -> buffer.length);
+    }
+
+    /**
+     * @param bufferSize capacity of each buffer
+     * @param maxPooled  buffers kept at most
+     * @return pool of direct byte buffers
+     */
+    public static BufferPool<ByteBuffer> direct(int bufferSize, int maxPooled) {
+        return new BufferPool<>(bufferSize, maxPooled, ByteBuffer::allocateDirect, ByteBuffer::capacity);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate one if the pool is empty
+     *
+     * @return buffer of the pool's buffer size
+     */
+    public T acquire() {
+        T buffer = buffers.poll();
+        if (buffer == null) {
+            return allocator.apply(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back. Buffers beyond the pool limit are left to the GC
+     *
+     * @param buffer buffer taken from this pool
+     */
+    public void release(T buffer) {
+        boolean fits = capacity.applyAsInt(buffer) == bufferSize;
+        if (fits && pooled.incrementAndGet() <= maxPooled) {
+            buffers.add(buffer);
+        } else if (fits) {
+            pooled.decrementAndGet();
+        }
+    }
+}
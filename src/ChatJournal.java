@@ -0,0 +1,237 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of a single chat room.
+ * Each record is framed as [length][crc32][sequence][type][fields...] so a torn tail can be detected on replay
+ */
+public class ChatJournal {
+    public static final byte RECORD_USER = 0;      // New member: user id, username
+    public static final byte RECORD_MESSAGE = 1;   // New chat history entry of earlier versions: message text
+    public static final byte RECORD_CHAT_MESSAGE = 2;  // New chat history entry: ChatMessage fields
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;   // Longer records are taken as damage, far above a chat message of the largest size
+
+    private final File file;
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition durable = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();  // Records appended since the last commit
+    private long lastSeq;         // Sequence of the last appended record
+    private long durableSeq;      // Sequence of the last record written (and synced, depending on policy)
+    private int recordsSinceSnapshot;
+
+    /**
+     * Open the journal file for appending
+     *
+     * @param file    journal file
+     * @param lastSeq sequence of the last record already applied to the room
+     * @throws IOException
+     */
+    public ChatJournal(File file, long lastSeq) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.position(channel.size());
+        this.lastSeq = lastSeq;
+        this.durableSeq = lastSeq;
+    }
+
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public int getRecordsSinceSnapshot() {
+        return recordsSinceSnapshot;
+    }
+
+    /**
+     * Append a record to the pending batch. Caller must hold the journal lock
+     *
+     * @param type   record type
+     * @param fields record fields
+     * @return sequence of the appended record
+     */
+    public long append(byte type, String... fields) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeLong(++lastSeq);
+            out.writeByte(type);
+            for (String field : fields) {
+                byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            byte[] record = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            DataOutputStream header = new DataOutputStream(pending);
+            header.writeInt(record.length);
+            header.writeInt((int) crc.getValue());
+            header.write(record);
+        } catch (IOException e) {
+            // Writing to an in-memory buffer does not fail
+            throw new UncheckedIOException(e);
+        }
+        recordsSinceSnapshot++;
+        return lastSeq;
+    }
+
+    /**
+     * Write the pending batch to the journal file. Only called from the commit thread
+     *
+     * @param force true to fsync after writing
+     * @throws IOException
+     */
+    public void commit(boolean force) throws IOException {
+        byte[] batch;
+        long batchSeq;
+        lock.lock();
+        try {
+            if (pending.size() == 0) return;
+            batch = pending.toByteArray();
+            batchSeq = lastSeq;
+            pending = new ByteArrayOutputStream();
+        } finally {
+            lock.unlock();
+        }
+
+        // Appenders keep filling the next batch while this one is written
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (force) {
+            channel.force(false);
+        }
+        Metrics.JOURNAL_COMMIT_LATENCY.record(System.nanoTime() - start);
+        Metrics.JOURNAL_BYTES.add(batch.length);
+
+        lock.lock();
+        try {
+            durableSeq = batchSeq;
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until the record with given sequence has been committed
+     *
+     * @param seq record sequence
+     * @throws InterruptedException
+     */
+    public void awaitCommit(long seq) throws InterruptedException {
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                durable.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop all records after a snapshot has been taken. Caller must hold the journal lock
+     *
+     * @throws IOException
+     */
+    public void reset() throws IOException {
+        pending = new ByteArrayOutputStream();
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        durableSeq = lastSeq;
+        recordsSinceSnapshot = 0;
+        durable.signalAll();
+    }
+
+    public void close() throws IOException {
+        commit(true);
+        channel.close();
+    }
+
+    /**
+     * Journal record visitor used on replay
+     */
+    public interface RecordHandler {
+        void handle(byte type, String[] fields);
+    }
+
+    /**
+     * Replay all intact records of a journal file. A torn or corrupted tail is cut off, as is everything after
+     * a record whose length does not fit in the file
+     *
+     * @param file     journal file
+     * @param afterSeq records up to this sequence are already in the snapshot and are skipped
+     * @param handler  record visitor
+     * @return sequence of the last replayed record
+     * @throws IOException
+     */
+    public static long replay(File file, long afterSeq, RecordHandler handler) throws IOException {
+        if (!file.exists()) return afterSeq;
+        long lastSeq = afterSeq;
+        long validLength = 0;
+        long size = file.length();
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            records:
+            while (true) {
+                int length;
+                int crc;
+                byte[] record;
+                try {
+                    length = dis.readInt();
+                    crc = dis.readInt();
+                    if (length < 9 || length > MAX_RECORD_SIZE || length > size - validLength - 8) break;
+                    record = new byte[length];
+                    dis.readFully(record);
+                } catch (EOFException eof) {
+                    break;
+                }
+                CRC32 check = new CRC32();
+                check.update(record);
+                if ((int) check.getValue() != crc) break;
+
+                ByteArrayInputStream payload = new ByteArrayInputStream(record);
+                DataInputStream in = new DataInputStream(payload);
+                long seq = in.readLong();
+                byte type = in.readByte();
+                ArrayList<String> fields = new ArrayList<>();
+                while (payload.available() > 0) {
+                    int fieldLength = payload.available() < 4 ? -1 : in.readInt();
+                    if (fieldLength < 0 || fieldLength > payload.available()) break records;
+                    byte[] bytes = new byte[fieldLength];
+                    in.readFully(bytes);
+                    fields.add(new String(bytes, StandardCharsets.UTF_8));
+                }
+                if (seq > lastSeq) {
+                    handler.handle(type, fields.toArray(new String[0]));
+                    lastSeq = seq;
+                }
+                validLength += 8 + length;
+            }
+        }
+
+        // Cut off a partially written record so new appends start on a record boundary
+        if (validLength < size) {
+            System.out.println("Truncating damaged journal tail of " + file.getName());
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        return lastSeq;
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * Who can see a chat message
+ */
+enum Visibility {
+    room,       // Every member of the room
+    direct      // Only the sender and the recipients
+}
+
+/**
+ * Chat history entry. Stored once, and formatted for each reader by the client
+ */
+public class ChatMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Visibility[] VISIBILITIES = Visibility.values();
+
+    private final long timestamp;
+    private final Visibility visibility;
+    private final String sender;        // Sender's username, null for entries stored as plain text by earlier versions
+    private final String[] recipients;  // Recipients' usernames of a direct message, empty for room messages
+    private final String text;
+
+    public ChatMessage(long timestamp, Visibility visibility, String sender, String[] recipients, String text) {
+        this.timestamp = timestamp;
+        this.visibility = visibility;
+        this.sender = sender;
+        this.recipients = recipients;
+        this.text = text;
+    }
+
+    /**
+     * Message to every member of the room
+     */
+    public static ChatMessage room(String sender, String text) {
+        return new ChatMessage(System.currentTimeMillis(), Visibility.room, sender, new String[0], text);
+    }
+
+    /**
+     * Private message to some members
+     */
+    public static ChatMessage direct(String sender, String[] recipients, String text) {
+        return new ChatMessage(System.currentTimeMillis(), Visibility.direct, sender, recipients, text);
+    }
+
+    /**
+     * Convert a plain text history entry of an earlier version. Private entries were stored
+     * once per reader as "<username>-<message>"
+     *
+     * @param entry history entry
+     * @return chat message rendering the entry as it was
+     */
+    public static ChatMessage legacy(String entry) {
+        if (entry.contains("private message from @") || entry.contains("private message sent to @")) {
+            int separator = entry.indexOf("-[");
+            if (separator > 0) {
+                return new ChatMessage(0, Visibility.direct, null, new String[]{entry.substring(0, separator)}, entry.substring(separator + 1));
+            }
+        }
+        return new ChatMessage(0, Visibility.room, null, new String[0], entry);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Visibility getVisibility() {
+        return visibility;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String[] getRecipients() {
+        return recipients;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Check if a member can see this message
+     *
+     * @param username reader's username
+     * @return true if visible
+     */
+    public boolean isVisibleTo(String username) {
+        return visibility == Visibility.room || username.equals(sender) || Arrays.asList(recipients).contains(username);
+    }
+
+    /**
+     * Usernames the message refers to, sender first
+     *
+     * @return participants' usernames, empty for entries of earlier versions
+     */
+    public LinkedHashSet<String> getParticipants() {
+        LinkedHashSet<String> participants = new LinkedHashSet<>();
+        if (sender == null) return participants;
+        participants.add(sender);
+        participants.addAll(Arrays.asList(recipients));
+        return participants;
+    }
+
+    /**
+     * Wire form of the message, with usernames as the room's handles. Entries of earlier versions are sent as their text
+     *
+     * @param room chat room of the message
+     * @return chat line
+     */
+    public WireMessage toWire(ChatRoom room) {
+        if (sender == null) {
+            return new WireMessage(LineKind.system, timestamp, WireMessage.NO_USER, new int[0], text);
+        }
+        int[] handles = new int[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            handles[i] = room.handleOf(recipients[i]);
+        }
+        LineKind kind = visibility == Visibility.room ? LineKind.room : LineKind.direct;
+        return new WireMessage(kind, timestamp, room.handleOf(sender), handles, text);
+    }
+
+    /**
+     * Journal record fields: timestamp, visibility, sender, text, recipients...
+     *
+     * @return record fields
+     */
+    public String[] toFields() {
+        String[] fields = new String[4 + recipients.length];
+        fields[0] = Long.toString(timestamp);
+        fields[1] = Integer.toString(visibility.ordinal());
+        fields[2] = sender == null ? "" : sender;
+        fields[3] = text;
+        System.arraycopy(recipients, 0, fields, 4, recipients.length);
+        return fields;
+    }
+
+    public static ChatMessage fromFields(String[] fields) {
+        String sender = fields[2].isEmpty() ? null : fields[2];
+        return new ChatMessage(Long.parseLong(fields[0]), VISIBILITIES[Integer.parseInt(fields[1])], sender,
+                Arrays.copyOfRange(fields, 4, fields.length), fields[3]);
+    }
+}
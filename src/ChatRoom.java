@@ -1,27 +1,224 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Chat room object. Represents the chat room where user can interact each other
+ * Chat room object. Represents the chat room where user can interact each other.
+ * Only the newest {@link ServerConfig#HISTORY_MEMORY_CAPACITY} messages of the history are kept in memory,
+ * older messages are spilled to the room's {@link HistorySegment} and read from there when a client pages back.
+ * Rooms are saved as a {@link RoomSnapshot}. Java serialization is only kept to read snapshots of earlier versions
  */
 public class ChatRoom implements Serializable {
-    private static final long serialVersionUid = 01L;
+    private static final long serialVersionUID = -4627585141519931995L;  // Computed value of the journal-era version, for reading its snapshots. The original version is read by ChatRoomStore
     private String id;  // Chat room id
     private ConcurrentHashMap<String, User> users;  // All users. Users are mapped to their id for faster access
-    private List<String> chatHistory;   // Chat rooms chat history
+    private transient ConcurrentHashMap<String, User> usersByUsername;   // All users, mapped to their username
+    private transient ConcurrentHashMap<String, User> onlineUsers;       // Online users, mapped to their id
+    private transient ConcurrentHashMap<String, Integer> handles;    // Numeric handles that stand for usernames on the wire, valid while the server runs
+    private transient AtomicInteger nextHandle;
+    private ReentrantReadWriteLock historyLock;    // Guards chat history. Not a monitor, so virtual threads are not pinned
+    private int spilled;    // Number of messages in the history segment, which is also the position of the oldest message in memory
+    private transient ChatMessage[] recent;    // Newest messages, as a ring of fixed capacity
+    private transient int head;     // Ring slot of the oldest message in memory
+    private transient int count;    // Number of messages in memory
+    private transient HistorySegment segment;  // Opened on the first spill, or on load if the room has spilled before
+    private transient PositionIndex roomMessages;  // History positions of in-memory messages every member can see
+    private transient HashMap<String, PositionIndex> directMessages;   // History positions of in-memory private messages, mapped with each participant's username
 
     public ChatRoom(String id) {
         this.id = id;
         this.users = new ConcurrentHashMap<>();
-        this.chatHistory = Collections.synchronizedList(new ArrayList<String>());
+        this.usersByUsername = new ConcurrentHashMap<>();
+        this.onlineUsers = new ConcurrentHashMap<>();
+        this.handles = new ConcurrentHashMap<>();
+        this.nextHandle = new AtomicInteger();
+        this.historyLock = new ReentrantReadWriteLock();
+        initHistory();
     }
 
-    public void addChatHistory(String message) {
-        this.chatHistory.add(message);
+    private void initHistory() {
+        this.recent = new ChatMessage[Math.max(1, ServerConfig.HISTORY_MEMORY_CAPACITY)];
+        this.head = 0;
+        this.count = 0;
+        this.roomMessages = new PositionIndex();
+        this.directMessages = new HashMap<>();
+    }
+
+    /**
+     * Write the room's fields to a snapshot. The snapshot holds the in-memory messages, the spilled ones
+     * are already in the history segment
+     *
+     * @param out snapshot encoder
+     * @throws IOException
+     */
+    public void writeSnapshot(RoomSnapshot.Output out) throws IOException {
+        historyLock.readLock().lock();
+        try {
+            out.writeString(id);
+            out.writeVarInt(spilled);
+            // A member of the map may be added meanwhile, count what is written
+            ArrayList<User> members = new ArrayList<>(users.values());
+            out.writeVarInt(members.size());
+            for (User user : members) {
+                out.writeUser(user);
+            }
+            out.writeVarInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeMessage(recent[(head + i) % recent.length]);
+            }
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuild a room from a snapshot, members offline. Messages are added as they are decoded
+     *
+     * @param in snapshot decoder
+     * @return chat room
+     * @throws IOException
+     */
+    public static ChatRoom readSnapshot(RoomSnapshot.Input in) throws IOException {
+        ChatRoom room = new ChatRoom(in.readString());
+        int spilled = in.readVarInt();
+        int members = in.readVarInt();
+        for (int i = 0; i < members; i++) {
+            User user = in.readUser();
+            room.addUser(user.getId(), user);
+        }
+        if (spilled > 0) {
+            room.segment = new HistorySegment(ChatRoomStore.historyFile(room.id), spilled);
+            room.spilled = room.segment.size();
+        }
+        int messages = in.readVarInt();
+        for (int i = 0; i < messages; i++) {
+            room.addChatHistory(in.readMessage());
+        }
+        return room;
+    }
+
+    /**
+     * Java serialization of earlier versions. A snapshot holds the in-memory messages, the spilled ones are already in the history segment
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        historyLock.readLock().lock();
+        try {
+            out.defaultWriteObject();
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeObject(recent[(head + i) % recent.length]);
+            }
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes are not part of a snapshot, rebuild them while the members and in-memory messages are added back.
+     * If the capacity was lowered since the snapshot, the oldest messages are spilled right away
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        usersByUsername = new ConcurrentHashMap<>();
+        onlineUsers = new ConcurrentHashMap<>();
+        handles = new ConcurrentHashMap<>();
+        nextHandle = new AtomicInteger();
+        for (User user : users.values()) {
+            indexUser(user);
+        }
+        initHistory();
+        if (spilled > 0) {
+            segment = new HistorySegment(ChatRoomStore.historyFile(id), spilled);
+            spilled = segment.size();
+        }
+        int messages = in.readInt();
+        for (int i = 0; i < messages; i++) {
+            addChatHistory((ChatMessage) in.readObject());
+        }
+    }
+
+    public void addChatHistory(ChatMessage message) {
+        historyLock.writeLock().lock();
+        try {
+            if (count == recent.length) {
+                spillOldest();
+            }
+            recent[(head + count) % recent.length] = message;
+            count++;
+            index(message, spilled + count - 1);
+        } finally {
+            historyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Move the oldest in-memory message to the history segment and drop it from the indexes.
+     * Caller holds the history write lock
+     */
+    private void spillOldest() {
+        ChatMessage oldest = recent[head];
+        try {
+            if (segment == null) {
+                segment = new HistorySegment(ChatRoomStore.historyFile(id), spilled);
+            }
+            segment.append(oldest);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        recent[head] = null;
+        head = (head + 1) % recent.length;
+        count--;
+        spilled++;
+
+        roomMessages.dropBefore(spilled);
+        if (oldest.getVisibility() == Visibility.direct) {
+            dropDirect(oldest.getSender());
+            for (String recipient : oldest.getRecipients()) {
+                dropDirect(recipient);
+            }
+        }
+    }
+
+    private void dropDirect(String username) {
+        if (username == null) return;
+        PositionIndex own = directMessages.get(username);
+        if (own == null) return;
+        own.dropBefore(spilled);
+        if (own.size() == 0) {
+            directMessages.remove(username);
+        }
+    }
+
+    /**
+     * Add a message to the index of each reader. Caller holds the history write lock
+     *
+     * @param message  chat message
+     * @param position its position in the history
+     */
+    private void index(ChatMessage message, int position) {
+        if (message.getVisibility() == Visibility.room) {
+            roomMessages.add(position);
+            return;
+        }
+        if (message.getSender() != null) {
+            directMessages.computeIfAbsent(message.getSender(), (username) -> new PositionIndex()).add(position);
+        }
+        for (String recipient : message.getRecipients()) {
+            if (!recipient.equals(message.getSender())) {
+                directMessages.computeIfAbsent(recipient, (username) -> new PositionIndex()).add(position);
+            }
+        }
     }
 
     public String getId() {
@@ -29,12 +226,96 @@ public class ChatRoom implements Serializable {
     }
 
     /**
-     * Get chat room's history
+     * Get the newest messages a member can see before a position in the history. In memory, the room index
+     * is merged with the member's private message index, so only messages the member can see are touched.
+     * If the page is not full by then, it continues with the history segment, outside of the lock
+     *
+     * @param before   history position to page back from, messages at and after it are not included
+     * @param limit    maximum number of messages
+     * @param username reader's username
+     * @return page of messages, oldest first
+     * @throws IOException
+     */
+    public HistoryPage getChatHistoryBefore(int before, int limit, String username) throws IOException {
+        ArrayList<ChatMessage> page = new ArrayList<>();
+        HistorySegment cold;
+        historyLock.readLock().lock();
+        try {
+            PositionIndex own = directMessages.getOrDefault(username, PositionIndex.EMPTY);
+            int shared = roomMessages.countBefore(before) - 1;
+            int direct = own.countBefore(before) - 1;
+            while (page.size() < limit && (shared >= 0 || direct >= 0)) {
+                int position;
+                if (direct < 0 || (shared >= 0 && roomMessages.get(shared) > own.get(direct))) {
+                    position = roomMessages.get(shared--);
+                } else {
+                    position = own.get(direct--);
+                }
+                page.add(recent[(head + position - spilled) % recent.length]);
+                before = position;
+            }
+            if (page.size() == limit && (shared >= 0 || direct >= 0)) {
+                Collections.reverse(page);
+                return new HistoryPage(page, before);
+            }
+            before = Math.min(before, spilled);
+            cold = segment;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+
+        // Spilled messages are never rewritten, read them back in batches without blocking new messages
+        while (page.size() < limit && before > 0) {
+            int from = Math.max(0, before - limit);
+            List<ChatMessage> batch = cold.read(from, before);
+            int position = before;
+            before = from;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                position--;
+                if (batch.get(i).isVisibleTo(username)) {
+                    page.add(batch.get(i));
+                    if (page.size() == limit) {
+                        before = position;
+                        break;
+                    }
+                }
+            }
+        }
+        Collections.reverse(page);
+        return new HistoryPage(page, before);
+    }
+
+    /**
+     * Make spilled messages durable before a snapshot is taken without them
      *
-     * @return chat room history
+     * @throws IOException
      */
-    public List<String> getChatHistory() {
-        return chatHistory;
+    public void syncHistory() throws IOException {
+        historyLock.readLock().lock();
+        try {
+            if (segment != null) {
+                segment.sync();
+            }
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Close the history segment on server shutdown
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        historyLock.writeLock().lock();
+        try {
+            if (segment != null) {
+                segment.close();
+                segment = null;
+            }
+        } finally {
+            historyLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -52,13 +333,7 @@ public class ChatRoom implements Serializable {
      * @return all online users
      */
     public Collection<User> getOnlineUsers() {
-        ArrayList<User> onlineUsers = new ArrayList<>();
-        for (User user : getUsers()) {
-            if (user.getStatus() == Status.online) {
-                onlineUsers.add(user);
-            }
-        }
-        return onlineUsers;
+        return onlineUsers.values();
     }
 
     /**
@@ -79,6 +354,39 @@ public class ChatRoom implements Serializable {
      */
     public void addUser(String id, User user) {
         this.users.put(id, user);
+        indexUser(user);
+    }
+
+    private void indexUser(User user) {
+        // The first member with a username keeps it
+        usersByUsername.putIfAbsent(user.getUsername(), user);
+        setUserStatus(user, user.getStatus());
+    }
+
+    /**
+     * Change a member's status. Status changes go through the room so the online users stay in step with them
+     *
+     * @param user   member
+     * @param status new status
+     */
+    public void setUserStatus(User user, Status status) {
+        // Only called by the room's actor, or while the room is loaded, so a login and logout of the same user never interleave
+        user.setStatus(status);
+        if (status == Status.online) {
+            onlineUsers.put(user.getId(), user);
+        } else {
+            onlineUsers.remove(user.getId());
+        }
+    }
+
+    /**
+     * Get the handle that stands for a username in frames sent to this room's clients
+     *
+     * @param username user's username
+     * @return handle, assigned on first use
+     */
+    public int handleOf(String username) {
+        return handles.computeIfAbsent(username, (name) -> nextHandle.getAndIncrement());
     }
 
     /**
@@ -88,11 +396,67 @@ public class ChatRoom implements Serializable {
      * @return User object if found, null otherwise
      */
     public User getUserByUsername(String username) {
-        for (User user : users.values()) {
-            if (user.getUsername().equals(username)) {
-                return user;
+        return usersByUsername.get(username);
+    }
+
+    /**
+     * Ascending history positions, kept as a growable int array. Positions of spilled messages are dropped from the front
+     */
+    private static class PositionIndex {
+        static final PositionIndex EMPTY = new PositionIndex();
+        private int[] positions = new int[16];
+        private int start = 0;  // Array slot of the first position
+        private int end = 0;    // Array slot after the last position
+
+        void add(int position) {
+            if (end == positions.length) {
+                if (start > positions.length / 2) {
+                    // Mostly dropped, reuse the front of the array
+                    System.arraycopy(positions, start, positions, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    positions = Arrays.copyOf(positions, positions.length * 2);
+                }
+            }
+            positions[end++] = position;
+        }
+
+        int get(int i) {
+            return positions[start + i];
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        /**
+         * Drop the positions lower than the given one
+         *
+         * @param position history position
+         */
+        void dropBefore(int position) {
+            while (start < end && positions[start] < position) {
+                start++;
+            }
+        }
+
+        /**
+         * @param position history position
+         * @return number of indexed positions lower than the given one
+         */
+        int countBefore(int position) {
+            int low = start;
+            int high = end;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] < position) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
             }
+            return low - start;
         }
-        return null;
     }
 }
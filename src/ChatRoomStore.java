@@ -0,0 +1,405 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local persistence of chat rooms.
+ * Each room is stored as a {@link RoomSnapshot} (ChatRoom_<id>.snap) plus an append-only journal (ChatRoom_<id>.journal)
+ * holding the members and messages added since the snapshot. Messages that no longer fit in memory are
+ * in the room's history segment (ChatRoom_<id>.history). Journals are committed in groups by a single
+ * background thread and folded into a new snapshot every {@link ServerConfig#JOURNAL_SNAPSHOT_EVERY} records.
+ * Rooms are read from disk when first opened, and released again when the server closes them.
+ * Java serialized snapshots of earlier versions (ChatRoom_<id>.obj), the original version's included, are still read, and replaced on the next snapshot
+ */
+public class ChatRoomStore {
+    public static final String DIR = "./ChatRooms";
+
+    private final Map<String, ChatRoom> chatRooms;   // Rooms of the server, mapped with their id
+    private final ConcurrentHashMap<String, ChatJournal> journals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-committer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ChatRoomStore(Map<String, ChatRoom> chatRooms) {
+        this.chatRooms = chatRooms;
+    }
+
+    /**
+     * Start the group commit thread. Rooms are not read here, see {@link #open(String)}
+     */
+    public void load() {
+        File dir = new File(DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        committer.scheduleWithFixedDelay(this::commitAll, ServerConfig.JOURNAL_COMMIT_INTERVAL_MS,
+                ServerConfig.JOURNAL_COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rebuild a room from its last snapshot and replay the journal on top of it
+     *
+     * @param roomId chat room id
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void loadChatRoom(String roomId) throws IOException, ClassNotFoundException {
+        ChatRoom room;
+        long snapshotSeq = 0;
+        File snapshot = snapshotFile(roomId);
+        File legacy = legacySnapshotFile(roomId);
+        if (snapshot.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024)) {
+                RoomSnapshot loaded = RoomSnapshot.read(in);
+                snapshotSeq = loaded.getSeq();
+                room = loaded.getRoom();
+            }
+        } else if (legacy.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(legacy))) {
+                RoomSnapshot loaded = readLegacySnapshot(in);
+                snapshotSeq = loaded.getSeq();
+                room = loaded.getRoom();
+            }
+        } else {
+            room = new ChatRoom(roomId);
+        }
+
+        final ChatRoom target = room;
+        long lastSeq = ChatJournal.replay(journalFile(roomId), snapshotSeq, (type, fields) -> {
+            if (type == ChatJournal.RECORD_USER) {
+                target.addUser(fields[0], new User(fields[0], fields[1], Status.offline));
+            } else if (type == ChatJournal.RECORD_MESSAGE) {
+                target.addChatHistory(ChatMessage.legacy(fields[0]));
+            } else if (type == ChatJournal.RECORD_CHAT_MESSAGE) {
+                target.addChatHistory(ChatMessage.fromFields(fields));
+            }
+        });
+
+        // On server start, reset all users to offline
+        for (User user : room.getUsers()) {
+            room.setUserStatus(user, Status.offline);
+        }
+        ChatJournal journal = new ChatJournal(journalFile(roomId), lastSeq);
+        if (!snapshot.exists() && legacy.exists()) {
+            // Convert once, a crash before the next snapshot would otherwise read the old format again
+            saveChatRoomHistory(room, journal);
+        }
+        journals.put(roomId, journal);
+        chatRooms.put(roomId, room);
+    }
+
+    /**
+     * Get a room, loading it if it is not open. A room without snapshot and journal starts empty.
+     * Callers do not open the same room concurrently
+     *
+     * @param roomId chat room id
+     * @return chat room
+     * @throws IOException
+     */
+    public ChatRoom open(String roomId) throws IOException {
+        ChatRoom room = chatRooms.get(roomId);
+        if (room != null) return room;
+        try {
+            loadChatRoom(roomId);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        return chatRooms.get(roomId);
+    }
+
+    /**
+     * Save a room as a snapshot and close it, so another node can open it. Runs on the commit thread,
+     * which then no longer commits the room's journal. The room must not change anymore
+     *
+     * @param roomId chat room id
+     * @throws IOException
+     */
+    public void release(String roomId) throws IOException {
+        try {
+            committer.submit(() -> {
+                ChatJournal journal = journals.remove(roomId);
+                ChatRoom room = chatRooms.remove(roomId);
+                if (journal == null || room == null) return null;
+                journal.commit(true);
+                saveChatRoomHistory(room, journal);
+                journal.close();
+                room.close();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while saving room " + roomId);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Add a member to the room and journal it
+     *
+     * @param room chat room
+     * @param user new member
+     * @return sequence of the journal record, 0 for an existing member
+     */
+    public long addUser(ChatRoom room, User user) {
+        ChatJournal journal = getJournal(room.getId());
+        journal.getLock().lock();
+        try {
+            if (room.getUserById(user.getId()) != null) {
+                // Existing member, nothing new to persist
+                room.addUser(user.getId(), user);
+                return 0;
+            }
+            room.addUser(user.getId(), user);
+            return journal.append(ChatJournal.RECORD_USER, user.getId(), user.getUsername());
+        } finally {
+            journal.getLock().unlock();
+        }
+    }
+
+    /**
+     * Add a message to the room's history and journal it
+     *
+     * @param room    chat room
+     * @param message chat history entry
+     * @return sequence of the journal record
+     */
+    public long addChatHistory(ChatRoom room, ChatMessage message) {
+        ChatJournal journal = getJournal(room.getId());
+        journal.getLock().lock();
+        try {
+            room.addChatHistory(message);
+            return journal.append(ChatJournal.RECORD_CHAT_MESSAGE, message.toFields());
+        } finally {
+            journal.getLock().unlock();
+        }
+    }
+
+    /**
+     * With the "always" policy, wait until a record is on disk. Called by the client session that caused
+     * the record, after the room has handled the event, so the room does not wait for the disk.
+     * The room may have been released meanwhile, which commits and syncs its journal before removing it.
+     * A journal opened again since then starts at or after the sequence of that last record
+     *
+     * @param roomId chat room id
+     * @param seq    record sequence, 0 for none
+     */
+    public void awaitCommit(String roomId, long seq) {
+        if (ServerConfig.JOURNAL_SYNC_POLICY != SyncPolicy.always || seq == 0) return;
+        ChatJournal journal = journals.get(roomId);
+        if (journal == null) return;
+        try {
+            journal.awaitCommit(seq);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the journal of a room, creating it for a new room
+     *
+     * @param roomId chat room id
+     * @return room journal
+     */
+    private ChatJournal getJournal(String roomId) {
+        ChatJournal journal = journals.get(roomId);
+        if (journal != null) return journal;
+
+        // Open the file outside of computeIfAbsent, which would hold a monitor during file I/O
+        try {
+            File dir = new File(DIR);
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            ChatJournal created = new ChatJournal(journalFile(roomId), 0);
+            journal = journals.putIfAbsent(roomId, created);
+            if (journal == null) return created;
+            created.close();
+            return journal;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Commit every journal's pending batch as one group, and snapshot rooms with long journals
+     */
+    private void commitAll() {
+        boolean force = ServerConfig.JOURNAL_SYNC_POLICY != SyncPolicy.none;
+        for (Map.Entry<String, ChatJournal> entry : journals.entrySet()) {
+            ChatJournal journal = entry.getValue();
+            try {
+                journal.commit(force);
+                if (journal.getRecordsSinceSnapshot() >= ServerConfig.JOURNAL_SNAPSHOT_EVERY) {
+                    ChatRoom room = chatRooms.get(entry.getKey());
+                    if (room != null) {
+                        saveChatRoomHistory(room, journal);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Save the chat room object as a snapshot and start an empty journal
+     *
+     * @param room    the chat room instance
+     * @param journal the room's journal
+     * @throws IOException
+     */
+    private void saveChatRoomHistory(ChatRoom room, ChatJournal journal) throws IOException {
+        long start = System.nanoTime();
+        ServerEvents.SnapshotSaved event = new ServerEvents.SnapshotSaved();
+        event.begin();
+        File file = snapshotFile(room.getId());
+        long seq;
+        journal.getLock().lock();
+        try {
+            // The snapshot no longer holds spilled messages, they must be on disk first
+            room.syncHistory();
+            // Snapshot is written aside and renamed so a crash never leaves a half written snapshot
+            File tmp = new File(file.getPath() + ".tmp");
+            seq = journal.getLastSeq();
+            try (FileOutputStream fos = new FileOutputStream(tmp, false)) {
+                BufferedOutputStream out = new BufferedOutputStream(fos, 64 * 1024);
+                RoomSnapshot.write(room, seq, out);
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(legacySnapshotFile(room.getId()).toPath());
+            journal.reset();
+        } finally {
+            journal.getLock().unlock();
+        }
+        Metrics.SNAPSHOT_LATENCY.record(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = room.getId();
+            event.journalSeq = seq;
+            event.size = file.length();
+            event.commit();
+        }
+    }
+
+    /**
+     * Commit and close all journals on server shutdown
+     */
+    public void close() {
+        committer.shutdown();
+        try {
+            committer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ChatJournal journal : journals.values()) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (ChatRoom room : chatRooms.values()) {
+            try {
+                room.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read a Java serialized snapshot of an earlier version. The original version wrote the room alone,
+     * with its history as plain text entries, later versions put the journal sequence ahead of the room
+     *
+     * @param in snapshot input
+     * @return room and journal sequence, 0 for a snapshot of the original version
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    static RoomSnapshot readLegacySnapshot(InputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new LegacyObjectInputStream(in);
+        Object read;
+        long seq = 0;
+        try {
+            read = ois.readObject();
+        } catch (OptionalDataException e) {
+            // Primitive data ahead of the room is the journal sequence
+            if (e.eof) throw e;
+            seq = ois.readLong();
+            read = ois.readObject();
+        }
+        if (read instanceof OriginalChatRoom) {
+            return new RoomSnapshot(((OriginalChatRoom) read).toChatRoom(), seq);
+        }
+        return new RoomSnapshot((ChatRoom) read, seq);
+    }
+
+    /**
+     * Reads the original version's ChatRoom as an {@link OriginalChatRoom}. That class had another computed UID
+     * and other fields than ChatRoom has now, so the stream's class description is swapped for one with the same fields
+     */
+    private static class LegacyObjectInputStream extends ObjectInputStream {
+        LegacyObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass description = super.readClassDescriptor();
+            if (description.getName().equals("ChatRoom") && description.getSerialVersionUID() == OriginalChatRoom.serialVersionUID) {
+                return ObjectStreamClass.lookup(OriginalChatRoom.class);
+            }
+            return description;
+        }
+    }
+
+    /**
+     * Serialized fields of the original version's ChatRoom
+     */
+    private static class OriginalChatRoom implements Serializable {
+        private static final long serialVersionUID = 936846012905002748L;   // Computed value of the original ChatRoom
+        private String id;
+        private ConcurrentHashMap<String, User> users;
+        private List<String> chatHistory;   // Plain text entries, private ones once per reader
+
+        ChatRoom toChatRoom() {
+            ChatRoom room = new ChatRoom(id);
+            for (User user : users.values()) {
+                room.addUser(user.getId(), user);
+            }
+            for (String entry : chatHistory) {
+                room.addChatHistory(ChatMessage.legacy(entry));
+            }
+            return room;
+        }
+    }
+
+    static File historyFile(String roomId) {
+        return new File(DIR + "/ChatRoom_" + roomId + ".history");
+    }
+
+    private static File snapshotFile(String roomId) {
+        return new File(DIR + "/ChatRoom_" + roomId + ".snap");
+    }
+
+    private static File legacySnapshotFile(String roomId) {
+        return new File(DIR + "/ChatRoom_" + roomId + ".obj");
+    }
+
+    private static File journalFile(String roomId) {
+        return new File(DIR + "/ChatRoom_" + roomId + ".journal");
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 checksums of transferred files.
+ * Transfers update a digest while the data moves. The server stores files by their checksum,
+ * so a download can announce it before the first byte is sent
+ */
+public class Checksums {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Checksums() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feed the first bytes of a file to a digest. Used once when a transfer resumes,
+     * for the part that was transferred before
+     *
+     * @param digest digest to update
+     * @param file   file
+     * @param length number of bytes from the start of the file
+     * @throws IOException
+     */
+    public static void update(MessageDigest digest, File file, long length) throws IOException {
+        if (length <= 0) return;
+        byte[] buffer = new byte[64 * 1024];
+        try (FileInputStream in = new FileInputStream(file)) {
+            while (length > 0) {
+                int bytes = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (bytes < 0) {
+                    throw new IOException(file.getName() + " is shorter than " + length + " bytes");
+                }
+                digest.update(buffer, 0, bytes);
+                length -= bytes;
+            }
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -20,7 +20,13 @@ import javafx.util.Pair;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 enum ResponseType {
@@ -29,7 +35,15 @@ enum ResponseType {
     FILES,
     UPLOAD,
     DOWNLOAD,
-    DIRECT_MESSAGE
+    DIRECT_MESSAGE,
+    DOWNLOAD_CHUNK,
+    UPLOAD_READY,
+    HISTORY,
+    HANDLE,
+    COMPRESSION,
+    REDIRECT,
+    ROSTER,
+    PRESENCE
 }
 
 /**
@@ -48,20 +62,26 @@ public class Client extends Application implements EventHandler<ActionEvent> {
     private MenuBar menuBar = new MenuBar();
     private Menu menuFile = new Menu("File");
     private Menu menuUser = new Menu("User");
+    private Menu menuChat = new Menu("Chat");
     private MenuItem menuItemDownload = new MenuItem("Download File");
     private MenuItem menuItemUpload = new MenuItem("Upload File");
     private MenuItem menuItemLogout = new MenuItem("Logout");
     private MenuItem menuItemChangeRoom = new MenuItem("Change Room");
+    private MenuItem menuItemHistory = new MenuItem("Load Earlier Messages");
     private TextArea taChat = new TextArea();
     private TextArea taInput = new TextArea();
     private Button btnSend = new Button("Send");
     private ListView listViewUsers = new ListView();
 
     // Other attributes
-    public static final int SERVER_PORT = 8080;
+    public static final int SERVER_PORT = Integer.getInteger("chatroom.server.port", 8080);
+    public static final int CHUNK_SIZE = 64 * 1024;    // Bytes per file chunk
+    public static final boolean COMPRESSION = Boolean.getBoolean("chatroom.compression");  // Ask the server to compress its output, for slow links
     protected static final ResponseType[] RESPONSE_TYPES = ResponseType.values();  // All server response types
     protected static final Status[] STATUS_TYPES = Status.values();    // ONLINE/OFFLINE
     private Socket socket = null;
+    private String serverHost = "localhost";
+    private int serverPort = SERVER_PORT;   // Changes when a cluster sends the client to the node that owns its room
     private DataOutputStream dos = null;
     private DataInputStream dis = null;
     private Thread messageService = null;
@@ -69,6 +89,9 @@ public class Client extends Application implements EventHandler<ActionEvent> {
     private String roomId = "";
     private ArrayList<String> fileList = null;
     private Boolean loaded = false;
+    private int uploadIds = 0;
+    private volatile int historyCursor = -1;    // Position to ask for older history with, -1 until the first page arrives
+    private ConcurrentHashMap<Integer, CompletableFuture<Long>> uploadOffsets = new ConcurrentHashMap<>();  // Start positions announced by the server, mapped with transfer id
 
     public static void main(String[] args) {
         launch(args);
@@ -83,7 +106,10 @@ public class Client extends Application implements EventHandler<ActionEvent> {
         stage = _stage;
         stage.setOnCloseRequest((WindowEvent windowEvent) -> {
             try {
-                dos.writeInt(RequestType.LOGOUT.ordinal());
+                synchronized (dos) {
+                    dos.writeInt(RequestType.LOGOUT.ordinal());
+                    dos.flush();
+                }
                 saveUserInfo(roomId);
             } catch (IOException ioe) {
                 alert(Alert.AlertType.ERROR, "ERROR", ioe + "");
@@ -95,7 +121,10 @@ public class Client extends Application implements EventHandler<ActionEvent> {
         // Menu section
         menuFile.getItems().addAll(menuItemUpload, menuItemDownload);
         menuUser.getItems().addAll(menuItemChangeRoom, menuItemLogout);
-        menuBar.getMenus().addAll(menuFile, menuUser);
+        menuChat.getItems().addAll(menuItemHistory);
+        menuBar.getMenus().addAll(menuFile, menuChat, menuUser);
+        menuItemHistory.setDisable(true);
+        menuItemHistory.setOnAction(this);
         menuItemUpload.setOnAction(this);
         menuItemDownload.setOnAction(this);
         menuItemChangeRoom.setOnAction(this);
@@ -242,6 +271,9 @@ public class Client extends Application implements EventHandler<ActionEvent> {
                 case "Change Room":
                     handleChangeRoom();
                     break;
+                case "Load Earlier Messages":
+                    handleLoadHistory();
+                    break;
                 case "Logout":
                     handleLogout();
                     break;
@@ -261,7 +293,10 @@ public class Client extends Application implements EventHandler<ActionEvent> {
         showDialog("Do you want to join another room?", "Room ID: ", (String id) -> {
             try {
                 // Logout
-                dos.writeInt(RequestType.LOGOUT.ordinal());
+                synchronized (dos) {
+                    dos.writeInt(RequestType.LOGOUT.ordinal());
+                    dos.flush();
+                }
                 disconnectServer();
 
                 // Save username and room id in temp user file locally
@@ -310,7 +345,10 @@ public class Client extends Application implements EventHandler<ActionEvent> {
             if (btnType == logoutButton) {
                 try {
                     // Delete temp user file on logout
-                    dos.writeInt(RequestType.LOGOUT.ordinal());
+                    synchronized (dos) {
+                        dos.writeInt(RequestType.LOGOUT.ordinal());
+                        dos.flush();
+                    }
                     File tempUserFile = new File("./TempUser/CurrentUser.txt");
                     tempUserFile.delete();
                     disconnectServer();
@@ -338,23 +376,60 @@ public class Client extends Application implements EventHandler<ActionEvent> {
     }
 
     /**
-     * Upload a file to server with buffer
+     * Upload a file to server in chunks, on a background thread.
+     * Each chunk is a request of its own, so chat messages can be sent in between.
+     * The header carries the checksum of the file, and the server answers with the position to start from.
+     * That skips the bytes it kept from an interrupted upload, or the whole file if it already has the content
      *
      * @param file file being uploaded
-     * @throws IOException
      */
-    private void uploadFileToServer(File file) throws IOException {
-        dos.writeInt(RequestType.UPLOAD.ordinal());
-        dos.writeUTF(file.getName());
-        dos.writeLong(file.length());
-        FileInputStream fis = new FileInputStream(file);
-        int bytes;
-        byte[] buffer = new byte[(int) file.length()];
-        while ((bytes = fis.read(buffer, 0, buffer.length)) > 0) {
-            dos.write(buffer, 0, bytes);
-        }
-        fis.close();
-        dos.flush();
+    private void uploadFileToServer(File file) {
+        int transferId = ++uploadIds;
+        CompletableFuture<Long> ready = new CompletableFuture<>();
+        uploadOffsets.put(transferId, ready);
+        Thread upload = new Thread(() -> {
+            try (FileInputStream fis = new FileInputStream(file)) {
+                long fileSize = file.length();
+                MessageDigest digest = Checksums.newDigest();
+                Checksums.update(digest, file, fileSize);
+                String hash = Checksums.toHex(digest.digest());
+                synchronized (dos) {
+                    dos.writeInt(RequestType.UPLOAD.ordinal());
+                    dos.writeInt(transferId);
+                    dos.writeUTF(file.getName());
+                    dos.writeLong(fileSize);
+                    dos.writeLong(fileSize);   // Resume as far as the server has the file
+                    dos.writeUTF(hash);
+                    dos.flush();
+                }
+                long offset = ready.get(30, TimeUnit.SECONDS);
+
+                fis.getChannel().position(offset);
+                int bytes;
+                byte[] buffer = new byte[CHUNK_SIZE];
+                while ((bytes = fis.read(buffer, 0, buffer.length)) > 0) {
+                    synchronized (dos) {
+                        dos.writeInt(RequestType.UPLOAD_CHUNK.ordinal());
+                        dos.writeInt(transferId);
+                        dos.writeInt(bytes);
+                        dos.write(buffer, 0, bytes);
+                        dos.flush();
+                    }
+                }
+                synchronized (dos) {
+                    dos.writeInt(RequestType.UPLOAD_DONE.ordinal());
+                    dos.writeInt(transferId);
+                    dos.writeUTF(hash);
+                    dos.flush();
+                }
+            } catch (Exception e) {
+                Platform.runLater(() -> alert(Alert.AlertType.ERROR, "ERROR", "Upload of " + file.getName() + " failed: " + e.getMessage()));
+            } finally {
+                uploadOffsets.remove(transferId);
+            }
+        });
+        upload.setDaemon(true);
+        upload.start();
     }
 
     /**
@@ -365,7 +440,10 @@ public class Client extends Application implements EventHandler<ActionEvent> {
     private void handleDownload() throws IOException {
         // On first interaction, get all files and load to list
         if (fileList == null) {
-            dos.writeInt(RequestType.FILES.ordinal());
+            synchronized (dos) {
+                dos.writeInt(RequestType.FILES.ordinal());
+                dos.flush();
+            }
         }
         while (!loaded) {
             // Wait for server to load file list
@@ -422,17 +500,37 @@ public class Client extends Application implements EventHandler<ActionEvent> {
     }
 
     /**
-     * Notify server download request
+     * Notify server download request. An interrupted download of the same file resumes after its partial file
      *
      * @param filename name of file on server
      * @param path     user selected destination path
      * @throws IOException
      */
     private void downloadFileFromServer(String filename, String path) throws IOException {
-        dos.writeInt(RequestType.DOWNLOAD.ordinal());
-        dos.writeUTF(filename);
-        dos.writeUTF(path);
-        dos.flush();
+        File partial = new File(path, filename + Download.PARTIAL_SUFFIX);
+        synchronized (dos) {
+            dos.writeInt(RequestType.DOWNLOAD.ordinal());
+            dos.writeUTF(filename);
+            dos.writeUTF(path);
+            dos.writeLong(partial.isFile() ? partial.length() : 0);
+            dos.writeLong(-1);  // Rest of the file
+            dos.flush();
+        }
+    }
+
+    /**
+     * Ask server for the page of chat history before the oldest message shown
+     *
+     * @throws IOException
+     */
+    private void handleLoadHistory() throws IOException {
+        if (historyCursor <= 0) return;
+        menuItemHistory.setDisable(true);   // Until the page arrives
+        synchronized (dos) {
+            dos.writeInt(RequestType.HISTORY.ordinal());
+            dos.writeInt(historyCursor);
+            dos.flush();
+        }
     }
 
     /**
@@ -442,9 +540,11 @@ public class Client extends Application implements EventHandler<ActionEvent> {
      */
     private void handleSend() throws IOException {
         String message = taInput.getText().trim();
-        dos.writeInt(RequestType.MESSAGE.ordinal());
-        dos.writeUTF(message);
-        dos.flush();
+        synchronized (dos) {
+            dos.writeInt(RequestType.MESSAGE.ordinal());
+            WireMessage.writeText(dos, message);
+            dos.flush();
+        }
         taInput.clear();
     }
 
@@ -467,15 +567,22 @@ public class Client extends Application implements EventHandler<ActionEvent> {
      */
     private void doConnect(String username, String roomId) {
         try {
-            socket = new Socket("localhost", SERVER_PORT);
-            dos = new DataOutputStream(socket.getOutputStream());
+            socket = new Socket(serverHost, serverPort);
+            socket.setTcpNoDelay(true);
+            // Requests are written field by field, the buffer sends each one in a single packet on flush
+            dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
             dis = new DataInputStream(socket.getInputStream());
             dos.writeUTF(username);
             dos.writeUTF(roomId);
+            historyCursor = -1;
             messageService = new ProcessThread(dis);
             messageService.start();
             currentUserName = username;
 
+            if (COMPRESSION) {
+                dos.writeInt(RequestType.COMPRESS.ordinal());
+            }
+
             // Broadcast user login to all online clients
             dos.writeInt(RequestType.USERS.ordinal());
             dos.flush();
@@ -538,11 +645,63 @@ public class Client extends Application implements EventHandler<ActionEvent> {
         result.ifPresentOrElse(action, emptyAction);
     }
 
+    /**
+     * A file being downloaded. Data goes to a partial file next to the target, which a later download
+     * of the same file resumes. The target only appears once the checksum of the whole file matches
+     */
+    static class Download {
+        static final String PARTIAL_SUFFIX = ".part";
+        final File target;
+        final File partial;
+        final FileOutputStream out;
+        final MessageDigest digest = Checksums.newDigest();
+        final String hash;
+        long remaining;
+
+        Download(File target, long offset, long length, String hash) throws IOException {
+            this.target = target;
+            this.partial = new File(target.getPath() + PARTIAL_SUFFIX);
+            this.hash = hash;
+            this.remaining = length;
+            // Bytes received by an earlier download only go into the checksum
+            Checksums.update(digest, partial, offset);
+            this.out = new FileOutputStream(partial, offset > 0);
+            out.getChannel().truncate(offset);
+        }
+
+        void write(byte[] buffer, int length) throws IOException {
+            out.write(buffer, 0, length);
+            digest.update(buffer, 0, length);
+            remaining -= length;
+        }
+
+        /**
+         * Move the file into place if it matches the server's checksum, otherwise delete it
+         *
+         * @return true if the file is complete and intact
+         * @throws IOException
+         */
+        boolean finish() throws IOException {
+            out.close();
+            if (!Checksums.toHex(digest.digest()).equalsIgnoreCase(hash)) {
+                partial.delete();
+                return false;
+            }
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        }
+    }
+
     /**
      * Thread class to process server response
      */
     class ProcessThread extends Thread {
         private DataInputStream dis;
+        private HashMap<Integer, Download> downloads = new HashMap<>();  // Downloads in progress, mapped with transfer id
+        private HashMap<Integer, String> usernames = new HashMap<>();   // Usernames of the room handles learned on this connection
+        private int presenceVersion = -1;   // Presence version of the user list, -1 while waiting for a roster
+        private HashMap<String, Status> statuses = new HashMap<>();     // Status of each member in the user list
+        private byte[] buffer = new byte[CHUNK_SIZE];
 
         public ProcessThread(DataInputStream dis) {
             this.dis = dis;
@@ -561,11 +720,23 @@ public class Client extends Application implements EventHandler<ActionEvent> {
                     ResponseType responseType = RESPONSE_TYPES[method];
                     switch (responseType) {
                         case MESSAGE:
-                            String message = dis.readUTF();
-                            log(message);
+                            WireMessage message = WireMessage.read(dis);
+                            if (message != null) {
+                                log(message.format(usernames, currentUserName));
+                            }
+                            break;
+                        case HANDLE:
+                            usernames.put(dis.readInt(), dis.readUTF());
                             break;
-                        case USERS:
-                            loadUsersInChatRoom();
+                        case COMPRESSION:
+                            // Everything after this response comes in compressed blocks
+                            dis = new DataInputStream(new Compression.Decoder(dis));
+                            break;
+                        case ROSTER:
+                            loadRoster();
+                            break;
+                        case PRESENCE:
+                            updatePresence();
                             break;
                         case FILES:
                             populateFileList();
@@ -576,11 +747,24 @@ public class Client extends Application implements EventHandler<ActionEvent> {
                         case DOWNLOAD:
                             downloadFile();
                             break;
+                        case DOWNLOAD_CHUNK:
+                            downloadChunk();
+                            break;
+                        case UPLOAD_READY:
+                            uploadReady();
+                            break;
+                        case HISTORY:
+                            loadHistory();
+                            break;
                         case DIRECT_MESSAGE:
-                            String sender = dis.readUTF();
-                            String directMessage = dis.readUTF();
-                            directMessage(sender, directMessage);
+                            WireMessage directMessage = WireMessage.read(dis);
+                            if (directMessage != null) {
+                                directMessage(directMessage);
+                            }
                             break;
+                        case REDIRECT:
+                            redirect(dis.readUTF(), dis.readInt());
+                            return;     // The server closes this connection
                         default:
                             System.out.println("Unknown response type received");
                             break;
@@ -598,14 +782,32 @@ public class Client extends Application implements EventHandler<ActionEvent> {
         }
 
         /**
-         * Receive private message
+         * Log in again on the cluster node that owns the room
          *
-         * @param sender  message sender
-         * @param message private message
+         * @param host node host
+         * @param port node port
          */
-        private void directMessage(String sender, String message) {
+        private void redirect(String host, int port) {
+            Platform.runLater(() -> {
+                disconnectServer();
+                serverHost = host;
+                serverPort = port;
+                taChat.clear();
+                listViewUsers.getItems().clear();
+                doConnect(currentUserName, roomId);
+            });
+        }
+
+        /**
+         * Receive private message, or an error notice
+         *
+         * @param directMessage private message
+         */
+        private void directMessage(WireMessage directMessage) {
+            Boolean error = directMessage.getKind() == LineKind.error;
+            String sender = error ? "ERROR" : directMessage.getSender(usernames);
+            String message = error ? directMessage.getText() : directMessage.format(usernames, currentUserName);
             Platform.runLater(() -> {
-                Boolean error = sender.equals("ERROR");
                 if (!error) {
                     log(message);
                 }
@@ -640,26 +842,98 @@ public class Client extends Application implements EventHandler<ActionEvent> {
         }
 
         /**
-         * Handle download response
+         * Handle download response. The file content follows in chunks
          *
          * @throws IOException
          */
         private void downloadFile() throws IOException {
+            int transferId = dis.readInt();
             long fileSize = dis.readLong();
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            String hash = dis.readUTF();
             String filePath = dis.readUTF();
-            File file = new File(filePath);
-            FileOutputStream fos = new FileOutputStream(file);
-            if (!(fileSize > 0)) {
-                return;
+            Download download = new Download(new File(filePath), offset, length, hash);
+            if (download.remaining > 0) {
+                downloads.put(transferId, download);
+            } else {
+                finishDownload(download);
             }
-            int bytes;
-            byte[] buffer = new byte[(int) fileSize];
-            while (fileSize > 0 && (bytes = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize))) != -1) {
-                fos.write(buffer, 0, bytes);
-                fileSize -= bytes;
+        }
+
+        /**
+         * Write a chunk of a download to its file
+         *
+         * @throws IOException
+         */
+        private void downloadChunk() throws IOException {
+            int transferId = dis.readInt();
+            int length = dis.readInt();
+            Download download = downloads.get(transferId);
+            while (length > 0) {
+                int bytes = dis.read(buffer, 0, Math.min(buffer.length, length));
+                if (bytes < 0) {
+                    throw new EOFException();
+                }
+                if (download != null) {
+                    download.write(buffer, bytes);
+                }
+                length -= bytes;
+            }
+            if (download != null && download.remaining <= 0) {
+                downloads.remove(transferId);
+                finishDownload(download);
+            }
+        }
+
+        private void finishDownload(Download download) throws IOException {
+            if (!download.finish()) {
+                alertLater(Alert.AlertType.ERROR, "ERROR", download.target.getName() + " failed the integrity check, please download it again");
+            }
+        }
+
+        /**
+         * Hand the server's start position to the upload waiting for it
+         *
+         * @throws IOException
+         */
+        private void uploadReady() throws IOException {
+            int transferId = dis.readInt();
+            long offset = dis.readLong();
+            CompletableFuture<Long> ready = uploadOffsets.get(transferId);
+            if (ready != null) {
+                ready.complete(offset);
             }
         }
 
+        /**
+         * Show a page of chat history. The page sent on join goes at the end of the chat section,
+         * older pages go on top of it
+         *
+         * @throws IOException
+         */
+        private void loadHistory() throws IOException {
+            int cursor = dis.readInt();
+            int count = dis.readInt();
+            StringBuilder page = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                WireMessage message = WireMessage.read(dis);
+                if (message != null) {
+                    page.append(message.format(usernames, currentUserName)).append("\n");
+                }
+            }
+            boolean older = historyCursor >= 0;
+            historyCursor = cursor;
+            Platform.runLater(() -> {
+                if (older) {
+                    taChat.insertText(0, page.toString());
+                } else {
+                    taChat.appendText(page.toString());
+                }
+                menuItemHistory.setDisable(cursor <= 0);
+            });
+        }
+
         /**
          * On new file uploaded, update file list
          *
@@ -684,37 +958,97 @@ public class Client extends Application implements EventHandler<ActionEvent> {
         }
 
         /**
-         * Populate user status section
+         * Populate user status section with every member of the room
          *
          * @throws IOException
          */
-        private void loadUsersInChatRoom() throws IOException {
-            String username = dis.readUTF();
-            Status status = STATUS_TYPES[dis.readInt()];
-
+        private void loadRoster() throws IOException {
+            presenceVersion = dis.readInt();
+            List<Pair<String, Status>> members = readMembers();
+            statuses.clear();
+            for (Pair<String, Status> member : members) {
+                statuses.put(member.getKey(), member.getValue());
+            }
             Platform.runLater(() -> {
-                Pair<String, Status> user = new Pair<String, Status>(username, status);
-                // Check if user already in list view
-                int idx = listViewUsers.getItems().indexOf(new Pair<String, Status>(username, STATUS_TYPES[1 - status.ordinal()]));
-                if (idx == -1) {
-                    listViewUsers.getItems().add(user);
-                } else {
-                    listViewUsers.getItems().set(idx, user);
+                listViewUsers.getItems().setAll(members);
+                sortUsers();
+            });
+        }
+
+        /**
+         * Update the status of members who went online or offline. If a delta is missing, ask for the roster again.
+         * A delta may start before the roster and carry changes it already has, those are left out
+         *
+         * @throws IOException
+         */
+        private void updatePresence() throws IOException {
+            int from = dis.readInt();
+            int to = dis.readInt();
+            List<Pair<String, Status>> delta = readMembers();
+            if (presenceVersion < 0 || to <= presenceVersion) return;  // Roster not there yet, or already part of it
+            if (from > presenceVersion) {
+                presenceVersion = -1;
+                synchronized (dos) {
+                    dos.writeInt(RequestType.USERS.ordinal());
+                    dos.flush();
                 }
+                return;
+            }
+            presenceVersion = to;
+            List<Pair<String, Status>> changed = new ArrayList<>();
+            for (Pair<String, Status> user : delta) {
+                if (statuses.put(user.getKey(), user.getValue()) != user.getValue()) {
+                    changed.add(user);
+                }
+            }
+            if (changed.isEmpty()) return;
+            for (Pair<String, Status> user : changed) {
+                log(String.format("%s %s", user.getKey(), user.getValue() == Status.online ? "joined" : "left"));
+            }
 
-                // Sort user based on online status
-                listViewUsers.getItems().sort(new Comparator<Pair<String, Status>>() {
-                    @Override
-                    public int compare(Pair<String, Status> o1, Pair<String, Status> o2) {
-                        if (o1.getValue() == o2.getValue()) {
-                            return 0;
-                        } else if (o1.getValue() == Status.online) {
-                            return -1;
-                        } else {
-                            return 1;
+            Platform.runLater(() -> {
+                for (Pair<String, Status> user : changed) {
+                    // Check if user already in list view
+                    int idx = listViewUsers.getItems().indexOf(new Pair<String, Status>(user.getKey(), STATUS_TYPES[1 - user.getValue().ordinal()]));
+                    if (idx == -1) {
+                        if (!listViewUsers.getItems().contains(user)) {
+                            listViewUsers.getItems().add(user);
                         }
+                    } else {
+                        listViewUsers.getItems().set(idx, user);
                     }
-                });
+                }
+                sortUsers();
+            });
+        }
+
+        private List<Pair<String, Status>> readMembers() throws IOException {
+            int count = dis.readInt();
+            List<Pair<String, Status>> members = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int handle = dis.readInt();
+                String username = dis.readUTF();
+                usernames.put(handle, username);
+                members.add(new Pair<String, Status>(username, STATUS_TYPES[dis.readByte()]));
+            }
+            return members;
+        }
+
+        /**
+         * Sort user based on online status. Runs on the FX thread
+         */
+        private void sortUsers() {
+            listViewUsers.getItems().sort(new Comparator<Pair<String, Status>>() {
+                @Override
+                public int compare(Pair<String, Status> o1, Pair<String, Status> o2) {
+                    if (o1.getValue() == o2.getValue()) {
+                        return 0;
+                    } else if (o1.getValue() == Status.online) {
+                        return -1;
+                    } else {
+                        return 1;
+                    }
+                }
             });
         }
 
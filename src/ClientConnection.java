@@ -0,0 +1,361 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Output side of a client connection. Frames from any thread go into a bounded outbound queue,
+ * and a single writer drains it: a writer task in thread and virtual mode, the selector in NIO mode.
+ * One slow client therefore only fills its own queue instead of blocking the sender.
+ * File downloads are pulled chunk by chunk whenever no chat frame is waiting.
+ * When the writer owns a plain socket channel, chunk content goes from the file to the socket with transferTo.
+ * If the client asked for compression, the writer sends {@link Compression} blocks from then on.
+ * Writers coalesce frames: the blocking writer through a buffer that is flushed once the queue is empty,
+ * the selector with one gathering write of every frame it can take
+ */
+public class ClientConnection implements Closeable {
+    private final OutboundQueue queue = new OutboundQueue(ServerConfig.OUTBOUND_QUEUE_CAPACITY, ServerConfig.OUTBOUND_OVERFLOW_POLICY);
+    private final ConcurrentLinkedQueue<DownloadTransfer> transfers = new ConcurrentLinkedQueue<>();   // Active downloads, served round robin
+    private final Closeable transport;
+    private final WritableByteChannel channel;     // Socket channel for zero copy downloads, null if the output is a stream
+    private final Runnable onPending;    // Wakes up the writer, null for a blocking writer waiting on the queue
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private final ReentrantLock internLock = new ReentrantLock();
+    private final BitSet interned = new BitSet();   // Room handles whose username this client has been sent
+    private DownloadTransfer finished;  // Download whose last chunk may still be in flight, closed on the writer's next call
+    private DownloadTransfer region;    // Zero copy download whose announced chunk content is not fully sent yet
+    private boolean reused;     // True if the last frame from next() is a chunk or block whose buffer the next call reuses
+    private volatile OutboundFrame compressionStart;   // Last plain frame, set once the client asks for compression
+    private Compression.Encoder encoder;    // Writer's block encoder, null while the output is plain
+
+    public ClientConnection(Closeable transport, Runnable onPending) {
+        this(transport, null, onPending);
+    }
+
+    public ClientConnection(Closeable transport, WritableByteChannel channel, Runnable onPending) {
+        this.transport = transport;
+        this.channel = channel;
+        this.onPending = onPending;
+    }
+
+    /**
+     * Create the connection of a blocking socket and start its writer
+     *
+     * @param socket   client socket
+     * @param executor runs the writer task
+     * @return client connection
+     * @throws IOException
+     */
+    public static ClientConnection open(Socket socket, Executor executor) throws IOException {
+        ClientConnection connection = new ClientConnection(socket, null);
+        socket.setTcpNoDelay(ServerConfig.TCP_NO_DELAY);
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), ServerConfig.OUTBOUND_BUFFER_SIZE);
+        executor.execute(() -> connection.runWriter(out));
+        return connection;
+    }
+
+    /**
+     * Queue a frame for this client. A client that cannot keep up is disconnected
+     * if the overflow policy says so
+     *
+     * @param frame outbound frame
+     */
+    public void send(OutboundFrame frame) {
+        int[] handles = frame.getHandles();
+        if (handles == null) {
+            offer(frame);
+            return;
+        }
+
+        // A handle's username has to be queued ahead of every frame using it, whichever thread sends first
+        internLock.lock();
+        try {
+            if (frame.namesHandles()) {
+                for (int handle : handles) {
+                    interned.set(handle);
+                }
+                offer(frame);
+                return;
+            }
+            for (int i = 0; i < handles.length; i++) {
+                if (interned.get(handles[i])) continue;
+                interned.set(handles[i]);
+                if (!offer(OutboundFrame.handle(handles[i], frame.getUsernames()[i]))) return;
+            }
+            offer(frame);
+        } finally {
+            internLock.unlock();
+        }
+    }
+
+    private boolean offer(OutboundFrame frame) {
+        if (!queue.offer(frame)) {
+            System.out.println("Outbound queue full, disconnecting slow client");
+            abort();
+            return false;
+        }
+        Metrics.frameOut(frame.getType());
+        signalWriter();
+        return true;
+    }
+
+    /**
+     * Switch the output to compressed blocks after the frames already queued
+     */
+    public void enableCompression() {
+        if (compressionStart != null) return;
+        compressionStart = OutboundFrame.build(ResponseType.COMPRESSION, null, false, (out) -> {
+        });
+        offer(compressionStart);
+    }
+
+    public boolean isCompressed() {
+        return compressionStart != null;
+    }
+
+    /**
+     * Start sending a file. Its chunks are written between chat frames
+     *
+     * @param transfer download transfer
+     */
+    public void startTransfer(DownloadTransfer transfer) {
+        transfers.add(transfer);
+        if (onPending == null) {
+            queue.wakeUp();
+        }
+        signalWriter();
+    }
+
+    private void signalWriter() {
+        if (onPending != null && pending.compareAndSet(false, true)) {
+            onPending.run();
+        }
+    }
+
+    /**
+     * Next frame to write: queued frames first, then one chunk of the next active download
+     *
+     * @return next frame, null if there is nothing to write. A chunk frame is only valid until the next call.
+     * The writer releases the frame once it is written
+     * @throws IOException
+     */
+    public OutboundFrame next() throws IOException {
+        if (finished != null) {
+            // The previous chunk has been written, its buffer can go back to the pool
+            finished.close();
+            finished = null;
+        }
+        reused = false;
+        OutboundFrame frame = queue.poll();
+        if (frame != null) return encode(frame);
+
+        DownloadTransfer transfer = transfers.poll();
+        if (transfer == null) return null;
+        try {
+            if (transfer.isZeroCopy()) {
+                frame = transfer.nextChunkHeader();
+                region = transfer;
+                if (encoder != null) {
+                    frame = encoder.raw(frame, transfer.getUnsent());
+                }
+            } else {
+                frame = transfer.nextChunk();
+                if (encoder != null && Compression.isCompressed(transfer.getFilename())) {
+                    frame = encoder.raw(frame, 0);
+                } else if (encoder != null) {
+                    encoder.add(frame);
+                    frame = encoder.finish();
+                }
+            }
+        } catch (IOException e) {
+            transfer.close();
+            throw e;
+        }
+        reused = true;
+        if (transfer.isDone()) {
+            finished = transfer;
+            // A full queue aborts the connection, and writerClosed() then closes the finished transfer
+            send(OutboundFrame.message(transfer.getFilename() + " downloaded successfully"));
+        } else if (queue.isClosed()) {
+            finished = transfer;
+        } else {
+            transfers.add(transfer);
+        }
+        return frame;
+    }
+
+    /**
+     * Put a queued frame in a compressed block if the output is compressed
+     *
+     * @param frame frame taken from the queue
+     * @return frame to write
+     */
+    private OutboundFrame encode(OutboundFrame frame) {
+        if (frame == compressionStart) {
+            // The client reads blocks after this frame
+            encoder = new Compression.Encoder();
+            return frame;
+        }
+        if (encoder == null) return frame;
+        // Everything waiting goes into one block with a single flush
+        do {
+            encoder.add(frame);
+            frame.release();
+        } while (encoder.pending() < Compression.BATCH_SIZE && (frame = queue.poll()) != null);
+        reused = true;
+        return encoder.finish();
+    }
+
+    /**
+     * Send the content of the last announced zero copy chunk. Called by the writer
+     * once the chunk header is written, and again until it returns true
+     *
+     * @return true if there is no chunk content left to send
+     * @throws IOException
+     */
+    public boolean writeRegion() throws IOException {
+        if (region == null) return true;
+        if (!region.transferTo(channel)) return false;
+        region = null;
+        return true;
+    }
+
+    public boolean isZeroCopy() {
+        return channel != null;
+    }
+
+    /**
+     * Check if the writer may take another frame before writing the last one
+     *
+     * @return false if the last frame's buffer is reused by the next call, or zero copy content has to follow it
+     */
+    public boolean canGather() {
+        return !reused && region == null;
+    }
+
+    /**
+     * Blocking writer loop
+     *
+     * @param out socket output stream
+     */
+    private void runWriter(OutputStream out) {
+        boolean lingered = false;
+        try {
+            while (true) {
+                OutboundFrame frame = next();
+                if (frame == null) {
+                    if (!lingered && ServerConfig.OUTBOUND_FLUSH_DELAY_US > 0) {
+                        // Give more frames a moment to join the buffered ones before flushing
+                        lingered = true;
+                        frame = queue.take(ServerConfig.OUTBOUND_FLUSH_DELAY_US, TimeUnit.MICROSECONDS);
+                        if (frame == null) continue;
+                    } else {
+                        out.flush();
+                        frame = queue.take(1, TimeUnit.SECONDS);
+                        if (frame == null) {
+                            if (queue.isClosed()) break;
+                            continue;
+                        }
+                    }
+                    frame = encode(frame);
+                }
+                lingered = false;
+                ByteBuffer buffer = frame.getBuffer();
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                Metrics.BYTES_OUT.add(buffer.remaining());
+                frame.release();
+            }
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            queue.close();
+        } finally {
+            writerClosed();
+            closeTransport();
+        }
+    }
+
+    /**
+     * Called by a non-blocking writer once there is nothing left to write
+     *
+     * @return true if frames arrived meanwhile and the writer has to keep going
+     */
+    public boolean writeDone() {
+        pending.set(false);
+        return (!queue.isEmpty() || !transfers.isEmpty()) && pending.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by the writer once it stops writing, to drop the frames left and close downloads it still holds
+     */
+    public void writerClosed() {
+        queue.discard();
+        region = null;
+        if (encoder != null) {
+            encoder.close();
+            encoder = null;
+        }
+        if (finished != null) {
+            transfers.add(finished);
+            finished = null;
+        }
+        closeTransfers();
+    }
+
+    public boolean isClosed() {
+        return queue.isClosed();
+    }
+
+    public int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Close after the queued frames have been written. Unfinished downloads are dropped
+     */
+    @Override
+    public void close() {
+        queue.close();
+        closeTransfers();
+        if (onPending != null) {
+            pending.set(true);
+            onPending.run();
+        }
+    }
+
+    /**
+     * Close right away, dropping queued frames
+     */
+    public void abort() {
+        queue.close();
+        closeTransfers();
+        closeTransport();
+    }
+
+    private void closeTransfers() {
+        DownloadTransfer transfer;
+        while ((transfer = transfers.poll()) != null) {
+            try {
+                transfer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeTransport() {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
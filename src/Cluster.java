@@ -0,0 +1,354 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Membership of this server in a cluster of nodes sharing the chat rooms. Rooms are assigned to the live nodes
+ * with a {@link HashRing}, and a client joining a room that another node owns is redirected there at login.
+ * Nodes share the ./ChatRooms and file store directories, so a room moves by its old owner saving and closing it,
+ * and its new owner loading it. Nodes tell each other they are alive, who is online and which rooms they released
+ * over a {@link ClusterBus}. Without configured nodes the server is a cluster of one that owns every room
+ */
+public class Cluster implements Closeable {
+    /**
+     * Rooms of this node, as seen by the cluster
+     */
+    public interface RoomHost {
+        /**
+         * @return ids of the rooms this node has open
+         */
+        Collection<String> getOpenRooms();
+
+        /**
+         * Save and close a room that moved to another node, and send its clients there. Nothing to do if it is not open
+         *
+         * @param roomId chat room id
+         */
+        void releaseRoom(String roomId);
+    }
+
+    private final String self;
+    private final Set<String> nodes;
+    private final ClusterBus bus;   // Null on a single server
+    private final ConcurrentHashMap<String, Long> lastSeen = new ConcurrentHashMap<>();   // Time of the last event from each other node
+    private final ConcurrentHashMap<String, String> presence = new ConcurrentHashMap<>();  // Node of each user online on another node, keyed with room id and username
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final HashMap<String, Handoff> handoffs = new HashMap<>();  // Answers awaited for each room this node is opening
+    private volatile HashRing ring;
+    private ScheduledExecutorService heartbeat;
+    private ExecutorService handoff;    // Releases rooms one at a time, away from the bus threads
+    private RoomHost host;
+
+    /**
+     * @param self  client address of this node
+     * @param nodes client addresses of all nodes, this one included
+     * @param bus   bus to the other nodes, null for a single server
+     */
+    public Cluster(String self, Collection<String> nodes, ClusterBus bus) {
+        this.self = self;
+        this.nodes = new TreeSet<>(nodes);
+        this.bus = bus;
+        // Every node counts as alive until it misses its heartbeats
+        this.ring = new HashRing(this.nodes, ServerConfig.CLUSTER_VIRTUAL_NODES);
+    }
+
+    /**
+     * Build the cluster of the chatroom.cluster.* settings
+     *
+     * @return cluster
+     */
+    public static Cluster fromConfig() {
+        String self = ServerConfig.CLUSTER_SELF;
+        if (ServerConfig.CLUSTER_NODES.isBlank()) {
+            return new Cluster(self, List.of(self), null);
+        }
+        ArrayList<String> nodes = new ArrayList<>();
+        ArrayList<String> peers = new ArrayList<>();
+        for (String node : ServerConfig.CLUSTER_NODES.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) continue;
+            parseAddress(node);
+            nodes.add(node);
+            if (!node.equals(self)) {
+                peers.add(node);
+            }
+        }
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException(self + " is not one of the cluster nodes " + nodes);
+        }
+        ClusterBus bus = ServerConfig.CLUSTER_BUS == BusType.tcp ? new TcpBus(self, peers) : new LocalBus();
+        return new Cluster(self, nodes, bus);
+    }
+
+    /**
+     * Split a node address
+     *
+     * @param node host:port
+     * @return socket address, unresolved
+     */
+    public static InetSocketAddress parseAddress(String node) {
+        int colon = node.lastIndexOf(':');
+        try {
+            return InetSocketAddress.createUnresolved(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid node address " + node + ", expected host:port");
+        }
+    }
+
+    public boolean isEnabled() {
+        return bus != null;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * @param roomId chat room id
+     * @return address of the node that owns the room
+     */
+    public String ownerOf(String roomId) {
+        return ring.ownerOf(roomId);
+    }
+
+    public boolean isLocal(String roomId) {
+        return ownerOf(roomId).equals(self);
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    public int getLiveNodeCount() {
+        return ring.getNodes().size();
+    }
+
+    /**
+     * @return number of users online in rooms of other nodes
+     */
+    public int getRemoteOnlineUsers() {
+        return presence.size();
+    }
+
+    /**
+     * Start sending heartbeats and handling the events of other nodes
+     *
+     * @param host rooms of this node
+     * @throws IOException
+     */
+    public void start(RoomHost host) throws IOException {
+        this.host = host;
+        if (bus == null) return;
+        long now = System.currentTimeMillis();
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                lastSeen.put(node, now);
+            }
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "cluster-heartbeat"));
+        handoff = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "cluster-handoff"));
+        bus.start(this::receive);
+        heartbeat.scheduleAtFixedRate(() -> {
+            bus.publish(ClusterEvent.heartbeat(self));
+            updateRing();
+        }, 0, ServerConfig.CLUSTER_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Cluster node " + self + " of " + nodes);
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Tell the other nodes a user went online or offline in a room of this node
+     *
+     * @param roomId   chat room id
+     * @param username user's username
+     * @param status   new status
+     */
+    public void publishPresence(String roomId, String username, Status status) {
+        if (bus != null) {
+            bus.publish(ClusterEvent.presence(self, roomId, username, status));
+        }
+    }
+
+    /**
+     * Answers to one room request
+     */
+    private static class Handoff {
+        final Set<String> waiting;  // Live nodes that have not released the room yet
+        String refusedBy;   // Node that still owns the room in its view, null if none
+
+        Handoff(Set<String> waiting) {
+            this.waiting = waiting;
+        }
+    }
+
+    /**
+     * Before opening a room, make every other live node release it, in case the room just moved here
+     * and its old owner still has it open. The room must not be opened unless every node released it:
+     * two nodes appending to the same journal would lose messages
+     *
+     * @param roomId chat room id
+     * @throws HandoffException if a node refused, or did not answer within {@link ServerConfig#CLUSTER_HANDOFF_TIMEOUT_MS}
+     */
+    public void awaitRelease(String roomId) throws HandoffException {
+        if (bus == null) return;
+        lock.lock();
+        try {
+            // Sessions opening the same room wait for the same answers
+            Handoff handoff = handoffs.get(roomId);
+            boolean first = handoff == null;
+            if (first) {
+                Set<String> waiting = new HashSet<>(ring.getNodes());
+                waiting.remove(self);
+                if (waiting.isEmpty()) return;
+                handoff = new Handoff(waiting);
+                handoffs.put(roomId, handoff);
+                bus.publish(ClusterEvent.roomRequest(self, roomId));
+            }
+            long nanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.CLUSTER_HANDOFF_TIMEOUT_MS);
+            while (!handoff.waiting.isEmpty() && handoff.refusedBy == null && nanos > 0) {
+                nanos = released.awaitNanos(nanos);
+            }
+            if (first) {
+                handoffs.remove(roomId);
+            }
+            if (handoff.refusedBy != null) {
+                throw new HandoffException(roomId, handoff.refusedBy + " still owns it");
+            }
+            if (!handoff.waiting.isEmpty()) {
+                throw new HandoffException(roomId, "no answer from " + handoff.waiting);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HandoffException(roomId, "interrupted");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Room that cannot be opened here because another node may still hold it. Nodes agree again
+     * once their heartbeats are current, so a later attempt may succeed
+     */
+    public static class HandoffException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public HandoffException(String roomId, String reason) {
+            super("Room " + roomId + " not released by the other nodes: " + reason);
+        }
+    }
+
+    /**
+     * Handle an event of another node. Called from the bus threads
+     *
+     * @param event cluster event
+     */
+    private void receive(ClusterEvent event) {
+        String node = event.getNode();
+        if (!nodes.contains(node) || node.equals(self)) return;
+        lastSeen.put(node, System.currentTimeMillis());
+        if (!ring.getNodes().contains(node)) {
+            // Back, take its rooms off the others right away
+            updateRing();
+        }
+
+        switch (event.getType()) {
+            case presence:
+                String key = event.getRoomId() + "\n" + event.getUsername();
+                if (event.getStatus() == Status.online) {
+                    presence.put(key, node);
+                } else {
+                    presence.remove(key, node);
+                }
+                break;
+            case room_request:
+                // Answered either way, the requester does not open the room without a release
+                handoff.execute(() -> {
+                    String roomId = event.getRoomId();
+                    if (!isLocal(roomId)) {
+                        host.releaseRoom(roomId);
+                        bus.publish(ClusterEvent.roomReleased(self, roomId));
+                    } else {
+                        System.out.println(node + " asked for room " + roomId + ", which is still owned here");
+                        bus.publish(ClusterEvent.roomRefused(self, roomId));
+                    }
+                });
+                break;
+            case room_released:
+            case room_refused:
+                lock.lock();
+                try {
+                    Handoff handoff = handoffs.get(event.getRoomId());
+                    if (handoff != null && handoff.waiting.remove(node)) {
+                        if (event.getType() == ClusterEventType.room_refused) {
+                            handoff.refusedBy = node;
+                        }
+                        released.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Rebuild the ring if a node joined or missed its heartbeats, then release the rooms that moved away
+     */
+    private void updateRing() {
+        long now = System.currentTimeMillis();
+        TreeSet<String> live = new TreeSet<>();
+        live.add(self);
+        lastSeen.forEach((node, seen) -> {
+            if (now - seen < ServerConfig.CLUSTER_NODE_TIMEOUT_MS) {
+                live.add(node);
+            }
+        });
+
+        lock.lock();
+        try {
+            if (live.equals(ring.getNodes())) return;
+            ring = new HashRing(live, ServerConfig.CLUSTER_VIRTUAL_NODES);
+            presence.values().removeIf((node) -> !live.contains(node));
+            // A node that went away will not answer
+            for (Handoff handoff : handoffs.values()) {
+                handoff.waiting.retainAll(live);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Cluster nodes alive: " + live);
+        handoff.execute(() -> {
+            for (String roomId : host.getOpenRooms()) {
+                if (!isLocal(roomId)) {
+                    host.releaseRoom(roomId);
+                    bus.publish(ClusterEvent.roomReleased(self, roomId));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (bus == null) return;
+        heartbeat.shutdownNow();
+        handoff.shutdownNow();
+        bus.close();
+    }
+}
@@ -0,0 +1,25 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Transport of cluster events. An event published by a node is delivered to every other node's subscriber,
+ * in the order the node published them. Delivery is best effort: events to a node that is down are dropped,
+ * and the heartbeats tell the others that it is gone
+ */
+public interface ClusterBus extends Closeable {
+    /**
+     * Start receiving events
+     *
+     * @param subscriber called with every event from other nodes, from the bus's own threads
+     * @throws IOException
+     */
+    void start(Consumer<ClusterEvent> subscriber) throws IOException;
+
+    /**
+     * Send an event to all other nodes without waiting for it to be delivered
+     *
+     * @param event cluster event
+     */
+    void publish(ClusterEvent event);
+}
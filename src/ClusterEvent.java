@@ -0,0 +1,118 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Kinds of cluster events
+ */
+enum ClusterEventType {
+    heartbeat,      // The sender is alive
+    presence,       // A user went online or offline in a room the sender owns
+    room_request,   // The sender is about to open a room, every node holding it has to release it first
+    room_released,  // The sender does not hold the room (anymore), its snapshot and journal are saved
+    room_refused    // The sender still owns the room in its view of the ring, and keeps it
+}
+
+/**
+ * Event sent between the nodes of a cluster. Encoded as [byte type][UTF node][UTF room id][UTF username][byte status]
+ */
+public class ClusterEvent {
+    private static final ClusterEventType[] TYPES = ClusterEventType.values();
+    private static final Status[] STATUSES = Status.values();
+
+    private final ClusterEventType type;
+    private final String node;      // Sender's client address
+    private final String roomId;    // Empty for a heartbeat
+    private final String username;  // Empty unless presence
+    private final Status status;
+
+    private ClusterEvent(ClusterEventType type, String node, String roomId, String username, Status status) {
+        this.type = type;
+        this.node = node;
+        this.roomId = roomId;
+        this.username = username;
+        this.status = status;
+    }
+
+    public static ClusterEvent heartbeat(String node) {
+        return new ClusterEvent(ClusterEventType.heartbeat, node, "", "", Status.online);
+    }
+
+    public static ClusterEvent presence(String node, String roomId, String username, Status status) {
+        return new ClusterEvent(ClusterEventType.presence, node, roomId, username, status);
+    }
+
+    public static ClusterEvent roomRequest(String node, String roomId) {
+        return new ClusterEvent(ClusterEventType.room_request, node, roomId, "", Status.online);
+    }
+
+    public static ClusterEvent roomReleased(String node, String roomId) {
+        return new ClusterEvent(ClusterEventType.room_released, node, roomId, "", Status.online);
+    }
+
+    public static ClusterEvent roomRefused(String node, String roomId) {
+        return new ClusterEvent(ClusterEventType.room_refused, node, roomId, "", Status.online);
+    }
+
+    public ClusterEventType getType() {
+        return type;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type.ordinal());
+            out.writeUTF(node);
+            out.writeUTF(roomId);
+            out.writeUTF(username);
+            out.writeByte(status.ordinal());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing to an in-memory buffer does not fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decode an event
+     *
+     * @param bytes encoded event
+     * @return cluster event
+     * @throws IOException
+     */
+    public static ClusterEvent decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int type = in.readByte();
+        if (type < 0 || type >= TYPES.length) {
+            throw new IOException("Invalid cluster event type " + type);
+        }
+        String node = in.readUTF();
+        String roomId = in.readUTF();
+        String username = in.readUTF();
+        int status = in.readByte();
+        if (status < 0 || status >= STATUSES.length) {
+            throw new IOException("Invalid status " + status);
+        }
+        return new ClusterEvent(TYPES[type], node, roomId, username, STATUSES[status]);
+    }
+}
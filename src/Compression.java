@@ -0,0 +1,191 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of a connection's server output, asked for with a COMPRESS request after login.
+ * Once the server has sent the COMPRESSION response, its output is a sequence of blocks [byte kind][int length][bytes].
+ * A deflate block holds every frame that was waiting in the queue, sync flushed, so the client can read them all
+ * while the compression window carries over to the next block. Chunks of files that are already compressed, and
+ * zero copy chunks, go in raw blocks
+ */
+public class Compression {
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+    public static final int BLOCK_HEADER_SIZE = 5;
+    public static final int BATCH_SIZE = 64 * 1024;    // Frame bytes compressed into one block at most
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "apk",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "mov", "avi", "webm",
+            "pdf", "docx", "xlsx", "pptx");
+
+    private Compression() {
+    }
+
+    /**
+     * Check if a file is of a type that is already compressed, so deflating its content is wasted work
+     *
+     * @param filename file name
+     * @return true if the file is sent as is
+     */
+    public static boolean isCompressed(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_TYPES.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Block writer of one connection. Only used by the connection's writer, and a returned block is only valid
+     * until the next call, like a download chunk
+     */
+    public static class Encoder {
+        private final Deflater deflater = new Deflater(ServerConfig.COMPRESSION_LEVEL);
+        private byte[] block = new byte[BLOCK_HEADER_SIZE + 16 * 1024];
+        private int size = BLOCK_HEADER_SIZE;
+        private int input = 0;  // Frame bytes in the current block
+
+        /**
+         * Add a frame to the current deflate block
+         *
+         * @param frame outbound frame
+         */
+        public void add(OutboundFrame frame) {
+            ByteBuffer bytes = frame.getBuffer();
+            input += bytes.remaining();
+            deflater.setInput(bytes);
+            while (!deflater.needsInput()) {
+                ensureSpace();
+                size += deflater.deflate(block, size, block.length - size, Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * @return frame bytes in the current deflate block
+         */
+        public int pending() {
+            return input;
+        }
+
+        /**
+         * Sync flush the current deflate block
+         *
+         * @return block frame
+         */
+        public OutboundFrame finish() {
+            while (true) {
+                ensureSpace();
+                size += deflater.deflate(block, size, block.length - size, Deflater.SYNC_FLUSH);
+                if (size < block.length) break;
+            }
+            ByteBuffer frame = ByteBuffer.wrap(block, 0, size);
+            frame.put(0, DEFLATE);
+            frame.putInt(1, size - BLOCK_HEADER_SIZE);
+            size = BLOCK_HEADER_SIZE;
+            input = 0;
+            return new OutboundFrame(frame, null, false);
+        }
+
+        /**
+         * Put a frame in a raw block
+         *
+         * @param frame  outbound frame
+         * @param follow bytes the writer sends right after the frame that belong to the block, as zero copy chunk content
+         * @return block frame
+         */
+        public OutboundFrame raw(OutboundFrame frame, long follow) {
+            ByteBuffer bytes = frame.getBuffer();
+            ByteBuffer raw = ByteBuffer.allocate(BLOCK_HEADER_SIZE + bytes.remaining());
+            raw.put(RAW);
+            raw.putInt((int) (bytes.remaining() + follow));
+            raw.put(bytes);
+            raw.flip();
+            return new OutboundFrame(raw, null, false);
+        }
+
+        public void close() {
+            deflater.end();
+        }
+
+        private void ensureSpace() {
+            if (block.length - size < 1024) {
+                block = Arrays.copyOf(block, block.length * 2);
+            }
+        }
+    }
+
+    /**
+     * Client side: turns the blocks back into the plain frame stream
+     */
+    public static class Decoder extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater();
+        private byte[] block = new byte[16 * 1024];
+        private int raw = 0;    // Bytes left in the current raw block
+
+        /**
+         * @param in server input, positioned at the first block
+         */
+        public Decoder(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (true) {
+                if (raw > 0) {
+                    int bytes = in.read(b, off, Math.min(len, raw));
+                    if (bytes < 0) throw new EOFException();
+                    raw -= bytes;
+                    return bytes;
+                }
+                if (!inflater.needsInput()) {
+                    try {
+                        int bytes = inflater.inflate(b, off, len);
+                        if (bytes > 0) return bytes;
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupted compressed block", e);
+                    }
+                    if (!inflater.needsInput()) throw new IOException("Unexpected end of the compressed stream");
+                }
+
+                // Next block
+                int kind = in.read();
+                if (kind < 0) return -1;
+                int length = in.readInt();
+                if (length < 0) throw new IOException("Invalid block length " + length);
+                if (kind == RAW) {
+                    raw = length;
+                } else if (kind == DEFLATE) {
+                    if (block.length < length) {
+                        block = new byte[length];
+                    }
+                    in.readFully(block, 0, length);
+                    inflater.setInput(block, 0, length);
+                } else {
+                    throw new IOException("Invalid block kind " + kind);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+}
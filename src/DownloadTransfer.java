@@ -0,0 +1,149 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A file being sent to a client in chunks.
+ * The connection's writer pulls one chunk at a time between chat frames, so a large download
+ * never holds up chat and only ever needs one chunk buffer.
+ * A zero copy transfer only builds chunk headers, the content goes from the file to the socket with transferTo
+ */
+public class DownloadTransfer implements Closeable {
+    public static final int CHUNK_HEADER_SIZE = 12;    // Response type, transfer id, chunk length
+    public static final BufferPool<byte[]> BUFFERS = BufferPool.arrays(CHUNK_HEADER_SIZE + ServerConfig.TRANSFER_CHUNK_SIZE, ServerConfig.TRANSFER_POOLED_BUFFERS);
+
+    private final int id;
+    private final String filename;
+    private final FileInputStream in;
+    private final boolean zeroCopy;
+    private final long length;
+    private long remaining;     // Bytes not announced in a chunk yet
+    private long position;      // File position of the next zero copy byte
+    private long unsent;        // Bytes of the announced zero copy chunk not sent yet
+    private byte[] buffer;
+    private ServerEvents.FileTransfer event;   // Recorded once the download is closed
+
+    /**
+     * Open a download of a range of a file
+     *
+     * @param id       transfer id
+     * @param filename file name shown to the client
+     * @param file     file to send
+     * @param offset   first byte to send
+     * @param length   number of bytes to send
+     * @param zeroCopy true if the writer sends chunk content with transferTo
+     * @throws IOException
+     */
+    public DownloadTransfer(int id, String filename, File file, long offset, long length, boolean zeroCopy) throws IOException {
+        this.id = id;
+        this.filename = filename;
+        this.in = new FileInputStream(file);
+        this.zeroCopy = zeroCopy;
+        this.length = length;
+        this.remaining = length;
+        this.position = offset;
+        in.getChannel().position(offset);
+        this.buffer = zeroCopy ? new byte[CHUNK_HEADER_SIZE] : BUFFERS.acquire();
+        this.event = ServerEvents.FileTransfer.start("download", filename, file.length());
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    public boolean isDone() {
+        return remaining <= 0;
+    }
+
+    /**
+     * Read the next chunk into the transfer's buffer. The returned frame is only valid
+     * until the next call, the writer has to send it before asking for another chunk
+     *
+     * @return chunk frame
+     * @throws IOException
+     */
+    public OutboundFrame nextChunk() throws IOException {
+        int length = in.read(buffer, CHUNK_HEADER_SIZE, (int) Math.min(ServerConfig.TRANSFER_CHUNK_SIZE, remaining));
+        if (length < 0) {
+            throw new IOException(filename + " is shorter than announced");
+        }
+        remaining -= length;
+        ByteBuffer frame = ByteBuffer.wrap(buffer, 0, CHUNK_HEADER_SIZE + length);
+        frame.putInt(0, ResponseType.DOWNLOAD_CHUNK.ordinal());
+        frame.putInt(4, id);
+        frame.putInt(8, length);
+        return new OutboundFrame(frame, null, false);
+    }
+
+    /**
+     * Announce the next chunk of a zero copy transfer. Its content has to be sent with transferTo
+     * before the next call, which reuses the header
+     *
+     * @return chunk header frame
+     */
+    public OutboundFrame nextChunkHeader() {
+        int length = (int) Math.min(ServerConfig.TRANSFER_CHUNK_SIZE, remaining);
+        remaining -= length;
+        unsent = length;
+        ByteBuffer header = ByteBuffer.wrap(buffer);
+        header.putInt(0, ResponseType.DOWNLOAD_CHUNK.ordinal());
+        header.putInt(4, id);
+        header.putInt(8, length);
+        return new OutboundFrame(header, null, false);
+    }
+
+    /**
+     * @return bytes of the announced zero copy chunk not sent yet
+     */
+    public long getUnsent() {
+        return unsent;
+    }
+
+    /**
+     * Send the content of the announced chunk straight from the file to the socket
+     *
+     * @param channel socket channel
+     * @return true once the whole chunk is sent, false if the socket buffer is full
+     * @throws IOException
+     */
+    public boolean transferTo(WritableByteChannel channel) throws IOException {
+        FileChannel file = in.getChannel();
+        while (unsent > 0) {
+            if (position >= file.size()) {
+                throw new IOException(filename + " is shorter than announced");
+            }
+            long bytes = file.transferTo(position, unsent, channel);
+            if (bytes == 0) return false;
+            Metrics.BYTES_OUT.add(bytes);
+            position += bytes;
+            unsent -= bytes;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer != null && !zeroCopy) {
+            BUFFERS.release(buffer);
+            buffer = null;
+        }
+        in.close();
+        if (event != null) {
+            // Closed after the last chunk is written, or earlier if the client went away
+            event.finish(length - remaining - unsent, remaining == 0 && unsent == 0);
+            event = null;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed store of the files shared in chat rooms.
+ * Each distinct content is stored once as a blob named by its SHA-256 (./Blobs/<hash>), and each room keeps
+ * a manifest mapping its file names to blobs (./Files/<roomId>/manifest). A blob is deleted once no room
+ * refers to it anymore. Reference counts are rebuilt from the manifests by a background scan after start,
+ * a room used before the scan reached it has its manifest read on demand. Until the scan is done no blob is deleted,
+ * blobs that lost their last known reference meanwhile are deleted after it if no scanned room refers to them.
+ * When the store is shared by the nodes of a cluster, a node only counts the references of its own rooms,
+ * so unreferenced blobs are kept, and keeps its partial uploads in a directory of its own
+ */
+public class FileStore {
+    public static final String DIR = "./Blobs";
+    public static final String ROOMS_DIR = "./Files";
+    private static final String MANIFEST = "manifest";
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final HashMap<String, Properties> manifests = new HashMap<>();  // File name to blob hash, mapped with room id
+    private final HashMap<String, Integer> references = new HashMap<>();   // Number of room files per blob
+    private final HashMap<String, UploadTransfer> receiving = new HashMap<>();  // Upload writing the partial file of a content, mapped with blob hash
+    private final ReentrantLock lock = new ReentrantLock();
+    private final boolean shared;   // True if other nodes use the same directories
+    private final File partialDir;
+    private long concurrentUploads = 0; // Numbers the partial files of uploads running alongside another of the same content
+    private final HashSet<String> unreferenced = new HashSet<>();   // Blobs whose count dropped to 0 before the scan was done
+    private volatile boolean scanned = false;   // True once every manifest has been read and its references counted
+
+    /**
+     * @param node id of this node in the cluster sharing the store, null if the store is not shared
+     */
+    public FileStore(String node) {
+        this.shared = node != null;
+        File partials = new File(DIR, ".partial");
+        this.partialDir = shared ? new File(partials, node.replaceAll("[^A-Za-z0-9.-]", "_")) : partials;
+    }
+
+    /**
+     * Start reading all room manifests in the background
+     */
+    public void load() {
+        partialDir.mkdirs();
+        // Files of uploads that ran alongside another are never resumed
+        File[] concurrent = partialDir.listFiles((file) -> file.isFile() && !isHash(file.getName()));
+        for (File file : concurrent == null ? new File[0] : concurrent) {
+            file.delete();
+        }
+        Thread scan = new Thread(this::scan, "file-store-scan");
+        scan.setDaemon(true);
+        scan.start();
+    }
+
+    private void scan() {
+        File[] rooms = new File(ROOMS_DIR).listFiles(File::isDirectory);
+        if (rooms != null) {
+            for (File room : rooms) {
+                lock.lock();
+                try {
+                    getManifest(room.getName());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        lock.lock();
+        try {
+            scanned = true;
+            for (String hash : unreferenced) {
+                if (!references.containsKey(hash)) {
+                    Files.deleteIfExists(blobFile(hash).toPath());
+                }
+            }
+            unreferenced.clear();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the manifest of a room, reading it if it was not read yet. Files stored directly in a room folder
+     * by earlier versions are moved into the store. Called with the lock held
+     *
+     * @param roomId chat room id
+     * @return manifest of the room, empty for a room without files
+     * @throws IOException
+     */
+    private Properties getManifest(String roomId) throws IOException {
+        Properties manifest = manifests.get(roomId);
+        if (manifest != null) return manifest;
+        File room = new File(ROOMS_DIR, roomId);
+        manifest = readManifest(room);
+        if (room.isDirectory()) {
+            migrate(room, manifest);
+        }
+        manifests.put(roomId, manifest);
+        for (String filename : manifest.stringPropertyNames()) {
+            references.merge(manifest.getProperty(filename), 1, Integer::sum);
+        }
+        return manifest;
+    }
+
+    /**
+     * Read the manifest of a room again after it moved here, another node may have changed it
+     *
+     * @param roomId chat room id
+     * @throws IOException
+     */
+    public void reload(String roomId) throws IOException {
+        Properties manifest = readManifest(new File(ROOMS_DIR, roomId));
+        lock.lock();
+        try {
+            Properties previous = manifests.put(roomId, manifest);
+            if (previous != null) {
+                for (String filename : previous.stringPropertyNames()) {
+                    references.merge(previous.getProperty(filename), -1, Integer::sum);
+                }
+            }
+            for (String filename : manifest.stringPropertyNames()) {
+                references.merge(manifest.getProperty(filename), 1, Integer::sum);
+            }
+            references.values().removeIf((count) -> count <= 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Properties readManifest(File room) throws IOException {
+        Properties manifest = new Properties();
+        File file = new File(room, MANIFEST);
+        if (file.isFile()) {
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                manifest.load(reader);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Move the plain files of a room folder into the store
+     *
+     * @param room     room folder
+     * @param manifest manifest of the room
+     * @throws IOException
+     */
+    private void migrate(File room, Properties manifest) throws IOException {
+        File[] files = room.listFiles((file) -> file.isFile() && !file.getName().startsWith(MANIFEST));
+        if (files.length == 0) return;
+        for (File file : files) {
+            MessageDigest digest = Checksums.newDigest();
+            Checksums.update(digest, file, file.length());
+            String hash = Checksums.toHex(digest.digest());
+            File blob = blobFile(hash);
+            if (blob.exists()) {
+                Files.delete(file.toPath());
+            } else {
+                Files.move(file.toPath(), blob.toPath());
+            }
+            manifest.setProperty(file.getName(), hash);
+        }
+        writeManifest(room.getName(), manifest);
+        System.out.printf("Moved %d files of room %s into the file store%n", files.length, room.getName());
+    }
+
+    /**
+     * Write a manifest to a temporary file and move it into place, so a crash never leaves half a manifest
+     */
+    private void writeManifest(String roomId, Properties manifest) throws IOException {
+        File room = new File(ROOMS_DIR, roomId);
+        room.mkdirs();
+        File temp = new File(room, MANIFEST + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            manifest.store(writer, null);
+        }
+        Files.move(temp.toPath(), new File(room, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static boolean isHash(String hash) {
+        return HASH.matcher(hash).matches();
+    }
+
+    /**
+     * @param hash hex encoded SHA-256
+     * @return blob file of a content, which may not exist
+     */
+    public File blobFile(String hash) {
+        return new File(DIR, hash);
+    }
+
+    /**
+     * @param hash hex encoded SHA-256
+     * @return file receiving uploads of a content until one is complete, kept for a resume
+     */
+    private File partialFile(String hash) {
+        return new File(partialDir, hash);
+    }
+
+    /**
+     * Get the file an upload writes to. The first upload of a content gets the content's partial file, with what
+     * earlier attempts left in it. An upload started while it runs gets an empty file of its own instead,
+     * so neither overwrites the other
+     *
+     * @param hash   hex encoded SHA-256
+     * @param upload upload of the content
+     * @return partial file of the upload
+     */
+    public File reservePartial(String hash, UploadTransfer upload) {
+        lock.lock();
+        try {
+            if (receiving.putIfAbsent(hash, upload) == null) {
+                return partialFile(hash);
+            }
+            return new File(partialDir, hash + "-" + ++concurrentUploads);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give back the file of an upload once it is committed or stopped. The content's partial file is kept
+     * for the next attempt, the file of a concurrent upload is deleted
+     *
+     * @param hash    hex encoded SHA-256
+     * @param partial partial file of the upload
+     * @param upload  upload of the content
+     */
+    public void releasePartial(String hash, File partial, UploadTransfer upload) {
+        lock.lock();
+        try {
+            if (partial.equals(partialFile(hash))) {
+                receiving.remove(hash, upload);
+            } else {
+                partial.delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check if the store already holds a content, so the client does not have to send it
+     *
+     * @param hash hex encoded SHA-256
+     * @return true if the blob exists
+     */
+    public boolean contains(String hash) {
+        lock.lock();
+        try {
+            return references.containsKey(hash) && blobFile(hash).isFile();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the content of a room file
+     *
+     * @param roomId   chat room id
+     * @param filename file name in the room
+     * @return blob hash, null if the room has no such file
+     * @throws IOException
+     */
+    public String lookup(String roomId, String filename) throws IOException {
+        lock.lock();
+        try {
+            return getManifest(roomId).getProperty(filename);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param roomId chat room id
+     * @return file names of a room
+     * @throws IOException
+     */
+    public List<String> list(String roomId) throws IOException {
+        lock.lock();
+        try {
+            return new ArrayList<>(getManifest(roomId).stringPropertyNames());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Store a verified upload as a blob, unless the same content arrived meanwhile
+     *
+     * @param partial complete upload
+     * @param hash    its hex encoded SHA-256
+     * @throws IOException
+     */
+    public void commit(File partial, String hash) throws IOException {
+        lock.lock();
+        try {
+            if (blobFile(hash).isFile()) {
+                Files.delete(partial.toPath());
+            } else {
+                Files.move(partial.toPath(), blobFile(hash).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Name a blob in a room. A file of the same name is replaced, and its blob is deleted once unreferenced.
+     * The blob is checked under the lock, since another room may have dropped its last reference after the upload
+     *
+     * @param roomId   chat room id
+     * @param filename file name in the room
+     * @param hash     blob hash
+     * @return false if the blob is no longer stored, and the room is left unchanged
+     * @throws IOException
+     */
+    public boolean link(String roomId, String filename, String hash) throws IOException {
+        lock.lock();
+        try {
+            if (!blobFile(hash).isFile()) return false;
+            Properties manifest = getManifest(roomId);
+            String previous = (String) manifest.setProperty(filename, hash);
+            if (hash.equals(previous)) return true;
+            writeManifest(roomId, manifest);
+            references.merge(hash, 1, Integer::sum);
+            if (previous != null && references.merge(previous, -1, Integer::sum) <= 0) {
+                references.remove(previous);
+                if (!shared && scanned) {
+                    Files.deleteIfExists(blobFile(previous).toPath());
+                } else if (!shared) {
+                    // A room not scanned yet may refer to it
+                    unreferenced.add(previous);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
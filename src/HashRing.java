@@ -0,0 +1,59 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning rooms to nodes. Each node is placed on the ring at several points,
+ * and a room belongs to the node at the first point at or after the room's hash. When a node leaves,
+ * only its rooms move, to the nodes after its points, and they move back when it returns
+ */
+public class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final TreeSet<String> nodes;
+
+    /**
+     * @param nodes        node addresses
+     * @param virtualNodes points per node
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = new TreeSet<>(nodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param key room id
+     * @return address of the node owning the room
+     */
+    public String ownerOf(String key) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, with a final mix so that similar keys land far apart
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
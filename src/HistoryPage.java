@@ -0,0 +1,22 @@
+import java.util.List;
+
+/**
+ * One page of a chat room's history, oldest message first
+ */
+public class HistoryPage {
+    private final List<ChatMessage> messages;
+    private final int cursor;   // Position to ask for the next older page with, 0 if there is none
+
+    public HistoryPage(List<ChatMessage> messages, int cursor) {
+        this.messages = messages;
+        this.cursor = cursor;
+    }
+
+    public List<ChatMessage> getMessages() {
+        return messages;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+}
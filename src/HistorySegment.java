@@ -0,0 +1,144 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-disk tier of a chat room's history, holding the messages that no longer fit in memory.
+ * Messages are appended to a data file as their journal fields, and an index file holds the end offset
+ * of each message (8 bytes per message), so any range of positions is read with two positional reads.
+ * Only read when a client pages back past the in-memory tail
+ */
+public class HistorySegment implements Closeable {
+    private final FileChannel data;
+    private final FileChannel index;
+    private int size;           // Number of messages in the segment
+    private long dataLength;    // End offset of the last message
+
+    /**
+     * Open the segment of a room, dropping messages written after the room's last snapshot.
+     * Those are still in the journal and are spilled again when it is replayed
+     *
+     * @param file  data file, the index file is next to it
+     * @param count number of messages the room has spilled
+     * @throws IOException
+     */
+    public HistorySegment(File file, int count) throws IOException {
+        this.data = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = FileChannel.open(new File(file.getPath() + ".idx").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int available = (int) (index.size() / 8);
+        if (available < count) {
+            System.out.println(file.getName() + " is missing " + (count - available) + " messages");
+        }
+        size = Math.min(available, count);
+        dataLength = size == 0 ? 0 : readLong(index, (size - 1) * 8L);
+        index.truncate(size * 8L);
+        data.truncate(dataLength);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append the oldest in-memory message. Caller holds the room's history write lock
+     *
+     * @param message chat message
+     * @throws IOException
+     */
+    public void append(ChatMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String field : message.toFields()) {
+            byte[] encoded = field.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        while (record.hasRemaining()) {
+            dataLength += data.write(record, dataLength);
+        }
+        ByteBuffer end = ByteBuffer.allocate(8).putLong(0, dataLength);
+        while (end.hasRemaining()) {
+            index.write(end, size * 8L + end.position());
+        }
+        size++;
+    }
+
+    /**
+     * Read a range of messages. Messages are never rewritten, so this does not need the room's lock
+     *
+     * @param from first position
+     * @param to   position after the last one
+     * @return messages, oldest first
+     * @throws IOException
+     */
+    public List<ChatMessage> read(int from, int to) throws IOException {
+        to = Math.min(to, size);
+        ArrayList<ChatMessage> messages = new ArrayList<>(Math.max(0, to - from));
+        if (from >= to) return messages;
+
+        // End offsets of the message before the range and of each message in it
+        ByteBuffer ends = ByteBuffer.allocate((to - from + 1) * 8);
+        long indexStart = (from - 1) * 8L;
+        if (from == 0) {
+            ends.putLong(0);
+            indexStart = 0;
+        }
+        readFully(index, ends, indexStart);
+        long start = ends.getLong(0);
+        long end = ends.getLong((to - from) * 8);
+        ByteBuffer records = ByteBuffer.allocate((int) (end - start));
+        readFully(data, records, start);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records.array()));
+        long recordStart = start;
+        for (int i = 1; i <= to - from; i++) {
+            long recordEnd = ends.getLong(i * 8);
+            ArrayList<String> fields = new ArrayList<>();
+            while (recordStart < recordEnd) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                fields.add(new String(bytes, StandardCharsets.UTF_8));
+                recordStart += 4 + bytes.length;
+            }
+            messages.add(ChatMessage.fromFields(fields.toArray(new String[0])));
+        }
+        return messages;
+    }
+
+    /**
+     * Make spilled messages durable. Called before a snapshot that no longer holds them
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        data.force(false);
+        index.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+        index.close();
+    }
+
+    private static long readLong(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        readFully(channel, buffer, position);
+        return buffer.getLong(0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytes = channel.read(buffer, position);
+            if (bytes < 0) {
+                throw new EOFException();
+            }
+            position += bytes;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with log-linear buckets, in the manner of HdrHistogram. Values below 256 microseconds
+ * have a bucket each, larger values fall into 128 buckets per power of two, so any value is reported
+ * within 1% of what was recorded. Buckets are atomic counters: any thread records without locks,
+ * and the histogram has a fixed size whatever the number of values
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;                  // Buckets per power of two: 2^SUB_BITS
+    private static final int LINEAR = 1 << (SUB_BITS + 1);  // Values with a bucket each
+    private static final int BUCKETS = LINEAR + (63 - SUB_BITS) * (1 << SUB_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray max = new AtomicLongArray(1);
+
+    /**
+     * Record a latency
+     *
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(indexOf(micros));
+        long seen;
+        while (micros > (seen = max.get(0)) && !max.compareAndSet(0, seen, micros)) {
+            // Another thread raised it meanwhile, compare again
+        }
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);    // At least SUB_BITS + 1
+        int shift = magnitude - SUB_BITS;
+        return LINEAR + (magnitude - SUB_BITS - 1) * (1 << SUB_BITS) + (int) (micros >>> shift) - (1 << SUB_BITS);
+    }
+
+    /**
+     * @param index bucket index
+     * @return highest value of the bucket, in microseconds
+     */
+    private static long valueOf(int index) {
+        if (index < LINEAR) return index;
+        int octave = (index - LINEAR) >> SUB_BITS;
+        int sub = (index - LINEAR) & ((1 << SUB_BITS) - 1);
+        int shift = octave + 1;
+        return (((long) (1 << SUB_BITS) + sub + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return largest value recorded, in microseconds
+     */
+    public long getMax() {
+        return max.get(0);
+    }
+
+    /**
+     * @param percentile percentile, 0 to 100
+     * @return value at or below which the given share of values lies, in microseconds. 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(valueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return mean of the recorded values, in microseconds, with each value taken as the top of its bucket
+     */
+    public double getMean() {
+        long count = 0;
+        double total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucket = counts.get(i);
+            count += bucket;
+            total += (double) bucket * valueOf(i);
+        }
+        return count == 0 ? 0 : total / count;
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Cluster bus between nodes started in the same JVM, for tests. Every started LocalBus receives the events
+ * of all others, on its own delivery thread
+ */
+public class LocalBus implements ClusterBus {
+    private static final CopyOnWriteArrayList<LocalBus> BUSES = new CopyOnWriteArrayList<>();  // Started buses of this JVM
+
+    private final LinkedBlockingQueue<ClusterEvent> inbox = new LinkedBlockingQueue<>();
+    private Thread delivery;
+
+    @Override
+    public void start(Consumer<ClusterEvent> subscriber) {
+        delivery = new Thread(() -> {
+            try {
+                while (true) {
+                    subscriber.accept(inbox.take());
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            }
+        }, "cluster-bus");
+        delivery.setDaemon(true);
+        delivery.start();
+        BUSES.add(this);
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        for (LocalBus bus : BUSES) {
+            if (bus != this) {
+                bus.inbox.add(event);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        BUSES.remove(this);
+        if (delivery != null) {
+            delivery.interrupt();
+        }
+    }
+}
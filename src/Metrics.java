@@ -0,0 +1,84 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics registry of the server. Counters are striped LongAdders and latencies go into {@link LatencyHistogram}s,
+ * so any thread records without a lock and threads counting the same thing do not contend on one cache line.
+ * Everything counts from server start, {@link MetricsExporter} publishes the values
+ */
+public class Metrics {
+    public static final LongAdder CONNECTIONS_ACCEPTED = new LongAdder();
+    public static final LongAdder CONNECTIONS_CLOSED = new LongAdder();
+    public static final LongAdder BYTES_IN = new LongAdder();      // Bytes read from clients
+    public static final LongAdder BYTES_OUT = new LongAdder();     // Bytes written to clients, downloads included
+    public static final LongAdder JOURNAL_BYTES = new LongAdder(); // Bytes written to chat journals
+    public static final LatencyHistogram FANOUT_LATENCY = new LatencyHistogram();   // Broadcast from the room event to the last recipient's queue
+    public static final LatencyHistogram JOURNAL_COMMIT_LATENCY = new LatencyHistogram();   // Write, and sync depending on policy, of one journal batch
+    public static final LatencyHistogram SNAPSHOT_LATENCY = new LatencyHistogram();     // Room snapshot written and synced
+    private static final LongAdder[] FRAMES_IN = adders(RequestType.values().length);   // Requests per request type
+    private static final LongAdder[] FRAMES_OUT = adders(ResponseType.values().length); // Frames queued to clients per response type
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public static void frameIn(RequestType type) {
+        FRAMES_IN[type.ordinal()].increment();
+    }
+
+    public static void frameOut(ResponseType type) {
+        FRAMES_OUT[type.ordinal()].increment();
+    }
+
+    public static long getFramesIn(RequestType type) {
+        return FRAMES_IN[type.ordinal()].sum();
+    }
+
+    public static long getFramesOut(ResponseType type) {
+        return FRAMES_OUT[type.ordinal()].sum();
+    }
+
+    /**
+     * Count the bytes read from a client's blocking input
+     *
+     * @param in socket input stream
+     * @return stream adding what is read to {@link #BYTES_IN}
+     */
+    public static InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    BYTES_IN.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    BYTES_IN.add(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                BYTES_IN.add(skipped);
+                return skipped;
+            }
+        };
+    }
+}
@@ -0,0 +1,227 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the {@link Metrics} of a server, with per-room message counts, online clients and queued frames.
+ * The same values are read as attributes of the MBean chatroom:type=Metrics,port=(client port) over JMX,
+ * and as plain text in the Prometheus format at http://(host):(port)/metrics, on
+ * {@link ServerConfig#METRICS_HOST} and the client port plus {@link ServerConfig#METRICS_PORT_OFFSET}.
+ * Values are read when asked for, nothing is computed between scrapes
+ */
+public class MetricsExporter implements DynamicMBean {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final int port;
+    private final Supplier<Collection<RoomActor>> rooms;
+    private HttpServer httpServer;
+
+    /**
+     * @param port  client port of the server
+     * @param rooms open rooms of the server
+     */
+    public MetricsExporter(int port, Supplier<Collection<RoomActor>> rooms) {
+        this.port = port;
+        this.rooms = rooms;
+    }
+
+    /**
+     * Register the MBean and start the plain-text endpoint. A failure of either is reported and the server runs without it
+     */
+    public void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chatroom:type=Metrics,port=" + port));
+        } catch (JMException e) {
+            System.out.println("Metrics MBean not registered: " + e.getMessage());
+        }
+
+        InetSocketAddress address = new InetSocketAddress(ServerConfig.METRICS_HOST, port + ServerConfig.METRICS_PORT_OFFSET);
+        try {
+            httpServer = HttpServer.create(address, 0);
+        } catch (IOException e) {
+            System.out.println("Metrics endpoint not started on " + address + ": " + e.getMessage());
+            return;
+        }
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.start();
+        System.out.println("Metrics served on http://" + address.getHostString() + ":" + address.getPort() + "/metrics");
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    /**
+     * One value of a metric
+     */
+    private static class Sample {
+        final String name;
+        final String type;          // counter, gauge or summary
+        final String label;         // Label name, null if none
+        final String labelValue;
+        final Number value;
+
+        Sample(String name, String type, String label, String labelValue, Number value) {
+            this.name = name;
+            this.type = type;
+            this.label = label;
+            this.labelValue = labelValue;
+            this.value = value;
+        }
+
+        /**
+         * @return attribute name of the value in the MBean
+         */
+        String attribute() {
+            return label == null ? name : name + "." + labelValue;
+        }
+    }
+
+    /**
+     * Read every metric
+     *
+     * @return samples, grouped by metric name
+     */
+    private List<Sample> collect() {
+        List<Sample> samples = new ArrayList<>();
+        long accepted = Metrics.CONNECTIONS_ACCEPTED.sum();
+        long closed = Metrics.CONNECTIONS_CLOSED.sum();
+        samples.add(new Sample("chatroom_connections_accepted_total", "counter", null, null, accepted));
+        samples.add(new Sample("chatroom_connections_open", "gauge", null, null, Math.max(0, accepted - closed)));
+        for (RequestType type : Server.REQUEST_TYPES) {
+            samples.add(new Sample("chatroom_frames_in_total", "counter", "type", type.name(), Metrics.getFramesIn(type)));
+        }
+        for (ResponseType type : ResponseType.values()) {
+            samples.add(new Sample("chatroom_frames_out_total", "counter", "type", type.name(), Metrics.getFramesOut(type)));
+        }
+        samples.add(new Sample("chatroom_bytes_in_total", "counter", null, null, Metrics.BYTES_IN.sum()));
+        samples.add(new Sample("chatroom_bytes_out_total", "counter", null, null, Metrics.BYTES_OUT.sum()));
+        samples.add(new Sample("chatroom_journal_bytes_total", "counter", null, null, Metrics.JOURNAL_BYTES.sum()));
+        samples.add(new Sample("chatroom_outbound_dropped_total", "counter", null, null, OutboundQueue.DROPPED_FRAMES.sum()));
+        samples.add(new Sample("chatroom_outbound_coalesced_total", "counter", null, null, OutboundQueue.COALESCED_FRAMES.sum()));
+        samples.add(new Sample("chatroom_outbound_overflow_disconnects_total", "counter", null, null, OutboundQueue.OVERFLOW_DISCONNECTS.sum()));
+        addHistogram(samples, "chatroom_fanout_latency_us", Metrics.FANOUT_LATENCY);
+        addHistogram(samples, "chatroom_journal_commit_latency_us", Metrics.JOURNAL_COMMIT_LATENCY);
+        addHistogram(samples, "chatroom_snapshot_latency_us", Metrics.SNAPSHOT_LATENCY);
+
+        List<Sample> online = new ArrayList<>();
+        List<Sample> queued = new ArrayList<>();
+        for (RoomActor actor : rooms.get()) {
+            String roomId = actor.getRoom().getId();
+            long depth = 0;
+            for (ClientConnection client : actor.getOnlineClients().values()) {
+                depth += client.depth();
+            }
+            samples.add(new Sample("chatroom_room_messages_total", "counter", "room", roomId, actor.getMessageCount()));
+            online.add(new Sample("chatroom_room_online_clients", "gauge", "room", roomId, actor.getOnlineClients().size()));
+            queued.add(new Sample("chatroom_room_queued_frames", "gauge", "room", roomId, depth));
+        }
+        samples.addAll(online);
+        samples.addAll(queued);
+        return samples;
+    }
+
+    private static void addHistogram(List<Sample> samples, String name, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            samples.add(new Sample(name, "summary", "quantile", Double.toString(quantile), histogram.getPercentile(quantile * 100)));
+        }
+        long count = histogram.getCount();
+        samples.add(new Sample(name + "_sum", "summary", null, null, (long) (histogram.getMean() * count)));
+        samples.add(new Sample(name + "_count", "summary", null, null, count));
+        samples.add(new Sample(name + "_max", "gauge", null, null, histogram.getMax()));
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        String family = null;
+        for (Sample sample : collect()) {
+            // The sum and count of a summary belong to its family
+            boolean member = family != null && "summary".equals(sample.type) && sample.name.startsWith(family);
+            if (!sample.name.equals(family) && !member) {
+                family = sample.name;
+                text.append("# TYPE ").append(family).append(' ').append(sample.type).append('\n');
+            }
+            text.append(sample.name);
+            if (sample.label != null) {
+                text.append('{').append(sample.label).append("=\"").append(escape(sample.labelValue)).append("\"}");
+            }
+            text.append(' ').append(sample.value).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Sample sample : collect()) {
+            if (sample.attribute().equals(attribute)) return sample.value.longValue();
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        List<Sample> samples = collect();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            for (Sample sample : samples) {
+                if (sample.attribute().equals(attribute)) {
+                    list.add(new Attribute(attribute, sample.value.longValue()));
+                    break;
+                }
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // Rooms come and go, so the attributes are listed anew each time
+        List<Sample> samples = collect();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[samples.size()];
+        for (int i = 0; i < attributes.length; i++) {
+            Sample sample = samples.get(i);
+            attributes[i] = new MBeanAttributeInfo(sample.attribute(), "long", sample.type, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Chat room server metrics", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,411 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event driven server core. A single selector thread accepts connections and reads them without blocking,
+ * cuts the input into complete requests of the RequestType wire protocol and hands them to a small worker pool.
+ * Requests of one connection are always handled in order, one at a time, by the same ClientSession logic
+ * used in thread mode
+ */
+public class NioServer {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FRAME_SIZE = 1 << 30;
+    private static final int MAX_GATHERED_FRAMES = 64;    // Frames written with one gathering write at most
+    private static final int MAX_QUEUED_INPUT = 1024 * 1024;    // Reading pauses while a connection has this many request bytes waiting for a worker
+    private static final byte[] END_OF_STREAM = new byte[0];  // Queued after the last request of a closed connection
+
+    private final Server server;
+    private final int port;
+    private final ExecutorService workers = Executors.newFixedThreadPool(ServerConfig.NIO_WORKERS);
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();  // Interest changes requested by other threads
+    private Selector selector;
+
+    public NioServer(Server server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    /**
+     * Run the selector loop
+     */
+    public void execute() {
+        System.out.printf("Accepting Connection on port %d (nio)..", port);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = Selector.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        // Let the worker finish the requests already received before closing
+                        key.interestOps(0);
+                        connection.dispatch(END_OF_STREAM);
+                    }
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        key.interestOps(0);
+                        connection.output.abort();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run a task on the selector thread, which owns all selection keys
+     *
+     * @param task selector task
+     */
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Accept a new client connection and register it for reading
+     *
+     * @param serverChannel listening channel
+     * @throws IOException
+     */
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        Metrics.CONNECTIONS_ACCEPTED.increment();
+        // The numeric address only, a reverse DNS lookup here would stall every connection of the selector
+        System.out.println("Request received from " + ServerEvents.acceptConnection(channel.socket().getInetAddress()));
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, ServerConfig.TCP_NO_DELAY);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Length of the next complete frame in the buffer, -1 if more bytes are needed.
+     * The first frame of a connection is the login frame, every other frame is a request
+     *
+     * @param in       buffer in read mode
+     * @param loggedIn true once the login frame has been received
+     * @return frame length in bytes, or -1 if incomplete
+     * @throws IOException if the frame is too large
+     */
+    static long frameLength(ByteBuffer in, boolean loggedIn) throws IOException {
+        int start = in.position();
+        int available = in.remaining();
+        if (!loggedIn) {
+            // username, room id
+            long username = utfLength(in, start, available);
+            if (username < 0) return -1;
+            long roomId = utfLength(in, start + (int) username, available - (int) username);
+            return roomId < 0 ? -1 : username + roomId;
+        }
+
+        if (available < 4) return -1;
+        int method = in.getInt(start);
+        if (method < 0 || method >= Server.REQUEST_TYPES.length) {
+            // Session rejects the request and closes the connection
+            return 4;
+        }
+        switch (Server.REQUEST_TYPES[method]) {
+            case MESSAGE: {
+                // text length, text
+                if (available < 8) return -1;
+                int textLength = in.getInt(start + 4);
+                if (textLength < 0 || textLength > Server.MAX_MESSAGE_SIZE) {
+                    throw new IOException("Invalid message length " + textLength);
+                }
+                long length = 8 + textLength;
+                return available < length ? -1 : length;
+            }
+            case UPLOAD: {
+                // transfer id, filename, file size, offset, checksum
+                long filename = utfLength(in, start + 8, available - 8);
+                if (filename < 0) return -1;
+                int hashOffset = 8 + (int) filename + 16;
+                long hash = utfLength(in, start + hashOffset, available - hashOffset);
+                return hash < 0 ? -1 : hashOffset + hash;
+            }
+            case UPLOAD_DONE: {
+                // transfer id, checksum
+                long hash = utfLength(in, start + 8, available - 8);
+                return hash < 0 ? -1 : 8 + hash;
+            }
+            case UPLOAD_CHUNK: {
+                // transfer id, chunk length, chunk
+                if (available < 12) return -1;
+                int chunkLength = in.getInt(start + 8);
+                if (chunkLength < 0 || chunkLength > Server.MAX_CHUNK_SIZE) {
+                    throw new IOException("Invalid chunk length " + chunkLength);
+                }
+                long length = 12 + chunkLength;
+                return available < length ? -1 : length;
+            }
+            case HISTORY:
+                // cursor
+                return available < 8 ? -1 : 8;
+            case DOWNLOAD: {
+                long filename = utfLength(in, start + 4, available - 4);
+                if (filename < 0) return -1;
+                long path = utfLength(in, start + 4 + (int) filename, available - 4 - (int) filename);
+                if (path < 0) return -1;
+                // offset, length
+                long length = 4 + filename + path + 16;
+                return available < length ? -1 : length;
+            }
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Length of a modified UTF-8 string written by DataOutputStream.writeUTF, -1 if incomplete
+     */
+    private static long utfLength(ByteBuffer in, int offset, int available) {
+        if (available < 2) return -1;
+        int length = 2 + Short.toUnsignedInt(in.getShort(offset));
+        return available < length ? -1 : length;
+    }
+
+    /**
+     * State of one client connection
+     */
+    class Connection implements Closeable {
+        final SocketChannel channel;
+        final ClientConnection output;
+        final Server.ClientSession session;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);    // Bytes read but not yet framed, in write mode
+        boolean loggedIn = false;
+        final ConcurrentLinkedQueue<byte[]> requests = new ConcurrentLinkedQueue<>();   // Complete frames waiting for a worker
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final AtomicLong queuedBytes = new AtomicLong();    // Bytes of requests waiting for a worker
+        final AtomicBoolean readPaused = new AtomicBoolean(false);
+        final ByteBuffer[] writing = new ByteBuffer[MAX_GATHERED_FRAMES];  // Frames of the current gathering write
+        final OutboundFrame[] written = new OutboundFrame[MAX_GATHERED_FRAMES];  // Frame of each buffer, released once it is written
+        int writeStart = 0;     // First frame not fully written
+        int writeEnd = 0;       // Number of frames gathered
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.output = new ClientConnection(this::abortOnSelector, ServerConfig.TRANSFER_ZERO_COPY ? channel : null,
+                    () -> runOnSelector(() -> addInterest(SelectionKey.OP_WRITE)));
+            this.session = server.newSession(output);
+        }
+
+        /**
+         * Read what is available and dispatch every complete frame
+         *
+         * @throws IOException
+         */
+        void read() throws IOException {
+            int read = channel.read(in);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            Metrics.BYTES_IN.add(read);
+            in.flip();
+            long length;
+            while ((length = frameLength(in, loggedIn)) >= 0) {
+                byte[] frame = new byte[(int) length];
+                in.get(frame);
+                dispatch(frame);
+                loggedIn = true;
+            }
+
+            // Grow the buffer when a single frame does not fit
+            if (in.position() == 0 && in.limit() == in.capacity()) {
+                if (in.capacity() >= MAX_FRAME_SIZE) {
+                    throw new IOException("Request too large");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                bigger.put(in);
+                in = bigger;
+            } else {
+                in.compact();
+            }
+
+            // Stop reading a client that sends faster than its requests are handled
+            if (queuedBytes.get() > MAX_QUEUED_INPUT && readPaused.compareAndSet(false, true)) {
+                removeInterest(SelectionKey.OP_READ);
+            }
+        }
+
+        void addInterest(int ops) {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | ops);
+            }
+        }
+
+        void removeInterest(int ops) {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~ops);
+            }
+        }
+
+        /**
+         * Queue a frame for the session and make sure a worker is on it
+         *
+         * @param frame complete frame
+         */
+        void dispatch(byte[] frame) {
+            queuedBytes.addAndGet(frame.length);
+            requests.add(frame);
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this::handleRequests);
+            }
+        }
+
+        /**
+         * Run queued requests through the session, in arrival order
+         */
+        void handleRequests() {
+            byte[] frame;
+            while ((frame = requests.poll()) != null) {
+                if (session.closed || frame == END_OF_STREAM) {
+                    requests.clear();
+                    session.close();
+                    break;
+                }
+                if (queuedBytes.addAndGet(-frame.length) <= MAX_QUEUED_INPUT / 2 && readPaused.compareAndSet(true, false)) {
+                    runOnSelector(() -> addInterest(SelectionKey.OP_READ));
+                }
+                session.dis = new DataInputStream(new ByteArrayInputStream(frame));
+                try {
+                    if (session.username == null) {
+                        System.out.println("Accepting connection from ip " + channel.socket().getInetAddress().getHostAddress());
+                        session.login();
+                    } else {
+                        session.handleRequest();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    session.close();
+                }
+            }
+            scheduled.set(false);
+
+            // A frame may have arrived after the queue was seen empty
+            if (!requests.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this::handleRequests);
+            }
+        }
+
+        /**
+         * Write queued frames until the socket buffer is full
+         *
+         * @throws IOException
+         */
+        void write() throws IOException {
+            while (true) {
+                if (writeStart == writeEnd) {
+                    // Content of a zero copy chunk follows its header
+                    if (!output.writeRegion()) return;
+                    if (!gather()) break;
+                }
+                Metrics.BYTES_OUT.add(channel.write(writing, writeStart, writeEnd - writeStart));
+                while (writeStart < writeEnd && !writing[writeStart].hasRemaining()) {
+                    writing[writeStart] = null;
+                    written[writeStart].release();
+                    written[writeStart++] = null;
+                }
+                if (writeStart < writeEnd) return;
+                writeStart = 0;
+                writeEnd = 0;
+            }
+
+            // Queue drained: finish a graceful close, or wait for the next frame
+            if (output.isClosed()) {
+                close();
+                return;
+            }
+            removeInterest(SelectionKey.OP_WRITE);
+            if (output.writeDone()) {
+                addInterest(SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Take frames for one gathering write, up to the outbound buffer size
+         *
+         * @return false if there is nothing to write
+         * @throws IOException
+         */
+        boolean gather() throws IOException {
+            long bytes = 0;
+            while (writeEnd < writing.length && bytes < ServerConfig.OUTBOUND_BUFFER_SIZE) {
+                OutboundFrame frame = output.next();
+                if (frame == null) break;
+                written[writeEnd] = frame;
+                writing[writeEnd] = frame.getBuffer();
+                bytes += writing[writeEnd++].remaining();
+                if (!output.canGather()) break;
+            }
+            return writeEnd > 0;
+        }
+
+        /**
+         * Transport of the output, closed when the output is aborted, from any thread: a slow client on overflow,
+         * or a failed write. The writer state belongs to the selector, so the connection is closed there,
+         * and the session then logs out as if the client had gone away
+         */
+        void abortOnSelector() {
+            runOnSelector(() -> {
+                try {
+                    close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                dispatch(END_OF_STREAM);
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (; writeStart < writeEnd; writeStart++) {
+                writing[writeStart] = null;
+                written[writeStart].release();
+                written[writeStart] = null;
+            }
+            output.writerClosed();
+            key.cancel();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A complete, immutable server response frame waiting in a connection's outbound queue.
+ * The same frame can be queued on many connections. A frame in a pooled direct buffer counts its references:
+ * one for its creator and one per queue holding it. Queues release a frame they drop, writers release a frame
+ * once it is written, and the buffer goes back to the pool with the last reference.
+ * Releasing any other frame does nothing
+ */
+public class OutboundFrame {
+    public static final int DIRECT_MIN_RECIPIENTS = 64;    // Broadcasts to this many NIO connections are sent from a direct buffer
+    private static final ResponseType[] RESPONSE_TYPES = ResponseType.values();
+    private static final BufferPool<ByteBuffer> DIRECT_BUFFERS = BufferPool.direct(ServerConfig.OUTBOUND_DIRECT_BUFFER_SIZE, ServerConfig.OUTBOUND_POOLED_DIRECT_BUFFERS);
+    private final ByteBuffer buffer;
+    private final String key;           // Frames with the same key replace each other when coalescing, null if unique
+    private final boolean droppable;    // False for frames the client cannot do without, such as responses to its own requests
+    private final int[] handles;        // Room handles the frame refers to, null if none
+    private final String[] usernames;   // Username of each handle
+    private final boolean namesHandles;  // True if the frame itself carries the username of each handle
+    private final ByteBuffer pooled;    // Pooled direct buffer holding the bytes, null if the buffer is not pooled
+    private final AtomicInteger references;     // Holders of the pooled buffer, null if the buffer is not pooled
+
+    public OutboundFrame(ByteBuffer buffer, String key, boolean droppable) {
+        this(buffer, key, droppable, null, null, false);
+    }
+
+    public OutboundFrame(ByteBuffer buffer, String key, boolean droppable, int[] handles, String[] usernames, boolean namesHandles) {
+        this(buffer, key, droppable, handles, usernames, namesHandles, null);
+    }
+
+    private OutboundFrame(ByteBuffer buffer, String key, boolean droppable, int[] handles, String[] usernames, boolean namesHandles, ByteBuffer pooled) {
+        this.buffer = buffer;
+        this.key = key;
+        this.droppable = droppable;
+        this.handles = handles;
+        this.usernames = usernames;
+        this.namesHandles = namesHandles;
+        this.pooled = pooled;
+        this.references = pooled == null ? null : new AtomicInteger(1);
+    }
+
+    /**
+     * Get the frame's bytes. Each call returns its own view, so writers never share a position
+     *
+     * @return frame bytes
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Copy of the frame in a direct buffer. A socket channel writes a heap buffer by copying it to a temporary
+     * direct buffer first, once per recipient, while a direct buffer goes to every socket as it is.
+     * Frames up to {@link ServerConfig#OUTBOUND_DIRECT_BUFFER_SIZE} take a buffer from a pool.
+     * Only for NIO writers, the blocking writers need an array
+     *
+     * @return frame with the same bytes in a direct buffer, to release once it is queued
+     */
+    public OutboundFrame toDirect() {
+        int size = buffer.remaining();
+        ByteBuffer pooled = size <= DIRECT_BUFFERS.getBufferSize() ? DIRECT_BUFFERS.acquire() : null;
+        // The frame keeps a view of its own, the pooled buffer is handed out again as it was
+        ByteBuffer direct = pooled == null ? ByteBuffer.allocateDirect(size) : pooled.duplicate();
+        direct.clear();
+        direct.put(buffer.duplicate());
+        direct.flip();
+        return new OutboundFrame(direct, key, droppable, handles, usernames, namesHandles, pooled);
+    }
+
+    /**
+     * Take a reference to the frame's buffer, for a queue holding the frame
+     */
+    public void retain() {
+        if (references != null) {
+            references.incrementAndGet();
+        }
+    }
+
+    /**
+     * Give up a reference to the frame's buffer. After the last one the frame must not be written anymore
+     */
+    public void release() {
+        if (references != null && references.decrementAndGet() == 0) {
+            DIRECT_BUFFERS.release(pooled);
+        }
+    }
+
+    /**
+     * @return response type, read from the frame's first int
+     */
+    public ResponseType getType() {
+        return RESPONSE_TYPES[buffer.getInt(buffer.position())];
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    /**
+     * @return room handles the frame refers to, which the client has to learn first. Null if none
+     */
+    public int[] getHandles() {
+        return handles;
+    }
+
+    public String[] getUsernames() {
+        return usernames;
+    }
+
+    /**
+     * @return true if the client learns the frame's handles from the frame, so no HANDLE frames go ahead of it
+     */
+    public boolean namesHandles() {
+        return namesHandles;
+    }
+
+    /**
+     * Frame body writer
+     */
+    public interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Encode a frame
+     *
+     * @param type      response type
+     * @param key       coalescing key, null if unique
+     * @param droppable true if the frame may be dropped on overflow
+     * @param body      frame body writer
+     * @return encoded frame
+     */
+    public static OutboundFrame build(ResponseType type, String key, boolean droppable, Body body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(type.ordinal());
+            body.write(out);
+            return new OutboundFrame(ByteBuffer.wrap(bytes.toByteArray()), key, droppable);
+        } catch (IOException e) {
+            // Writing to an in-memory buffer does not fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encode a frame that refers to users by their handle in the room
+     *
+     * @param type      response type
+     * @param key       coalescing key, null if unique
+     * @param droppable true if the frame may be dropped on overflow
+     * @param room      chat room the handles belong to
+     * @param users     usernames the frame refers to
+     * @param body      frame body writer
+     * @return encoded frame
+     */
+    private static OutboundFrame build(ResponseType type, String key, boolean droppable, ChatRoom room, Collection<String> users, Body body) {
+        String[] usernames = users.toArray(new String[0]);
+        int[] handles = new int[usernames.length];
+        for (int i = 0; i < usernames.length; i++) {
+            handles[i] = room.handleOf(usernames[i]);
+        }
+        return new OutboundFrame(build(type, key, droppable, body).buffer, key, droppable, handles, usernames, false);
+    }
+
+    /**
+     * Chat message frame
+     *
+     * @param room    chat room
+     * @param message chat message
+     * @return encoded frame
+     */
+    public static OutboundFrame message(ChatRoom room, ChatMessage message) {
+        WireMessage line = message.toWire(room);
+        return build(ResponseType.MESSAGE, null, true, room, message.getParticipants(), line::write);
+    }
+
+    /**
+     * Server notice shown in the chat section
+     *
+     * @param text notice
+     * @return encoded frame
+     */
+    public static OutboundFrame message(String text) {
+        WireMessage line = new WireMessage(LineKind.system, System.currentTimeMillis(), WireMessage.NO_USER, new int[0], text);
+        return build(ResponseType.MESSAGE, null, true, line::write);
+    }
+
+    /**
+     * Page of chat history
+     *
+     * @param cursor   position to ask for the next older page with, 0 if there is none
+     * @param room     chat room
+     * @param messages chat messages, oldest first
+     * @return encoded frame
+     */
+    public static OutboundFrame history(int cursor, ChatRoom room, List<ChatMessage> messages) {
+        LinkedHashSet<String> users = new LinkedHashSet<>();
+        for (ChatMessage message : messages) {
+            users.addAll(message.getParticipants());
+        }
+        return build(ResponseType.HISTORY, null, false, room, users, (out) -> {
+            out.writeInt(cursor);
+            out.writeInt(messages.size());
+            for (ChatMessage message : messages) {
+                message.toWire(room).write(out);
+            }
+        });
+    }
+
+    /**
+     * Every member of a room with their status: [int version][int count]([int handle][UTF username][byte status])...
+     *
+     * @param room    chat room
+     * @param version presence version the roster is at
+     * @param members room members
+     * @return encoded frame
+     */
+    public static OutboundFrame roster(ChatRoom room, int version, List<User> members) {
+        return presenceFrame(ResponseType.ROSTER, false, room, members, (out) -> out.writeInt(version));
+    }
+
+    /**
+     * Members whose status changed: [int from version][int to version][int count]([int handle][UTF username][byte status])...
+     * Dropped on overflow, the client then finds a gap in the versions and asks for the roster
+     *
+     * @param room    chat room
+     * @param from    presence version of the previous delta
+     * @param to      presence version after these changes
+     * @param members changed members, with their new status
+     * @return encoded frame
+     */
+    public static OutboundFrame presence(ChatRoom room, int from, int to, List<User> members) {
+        return presenceFrame(ResponseType.PRESENCE, true, room, members, (out) -> {
+            out.writeInt(from);
+            out.writeInt(to);
+        });
+    }
+
+    private static OutboundFrame presenceFrame(ResponseType type, boolean droppable, ChatRoom room, List<User> members, Body header) {
+        int[] handles = new int[members.size()];
+        String[] usernames = new String[members.size()];
+        for (int i = 0; i < handles.length; i++) {
+            usernames[i] = members.get(i).getUsername();
+            handles[i] = room.handleOf(usernames[i]);
+        }
+        OutboundFrame frame = build(type, null, droppable, (out) -> {
+            header.write(out);
+            out.writeInt(handles.length);
+            for (int i = 0; i < handles.length; i++) {
+                out.writeInt(handles[i]);
+                out.writeUTF(usernames[i]);
+                out.writeByte(members.get(i).getStatus().ordinal());
+            }
+        });
+        return new OutboundFrame(frame.buffer, null, droppable, handles, usernames, true);
+    }
+
+    /**
+     * Username of a room handle, queued once per connection ahead of the first frame using the handle
+     *
+     * @param handle   room handle
+     * @param username user's username
+     * @return encoded frame
+     */
+    public static OutboundFrame handle(int handle, String username) {
+        return build(ResponseType.HANDLE, null, false, (out) -> {
+            out.writeInt(handle);
+            out.writeUTF(username);
+        });
+    }
+
+    /**
+     * Notification of a newly uploaded file
+     *
+     * @param filename uploaded file name
+     * @return encoded frame
+     */
+    public static OutboundFrame upload(String filename) {
+        return build(ResponseType.UPLOAD, null, true, (out) -> out.writeUTF(filename));
+    }
+
+    /**
+     * Tell a client to log in on another node, which owns its room
+     *
+     * @param node client address of the node, host:port
+     * @return encoded frame
+     */
+    public static OutboundFrame redirect(String node) {
+        InetSocketAddress address = Cluster.parseAddress(node);
+        return build(ResponseType.REDIRECT, null, false, (out) -> {
+            out.writeUTF(address.getHostString());
+            out.writeInt(address.getPort());
+        });
+    }
+
+    /**
+     * Private message
+     *
+     * @param room    chat room
+     * @param message private message
+     * @return encoded frame
+     */
+    public static OutboundFrame directMessage(ChatRoom room, ChatMessage message) {
+        WireMessage line = message.toWire(room);
+        return build(ResponseType.DIRECT_MESSAGE, null, false, room, message.getParticipants(), line::write);
+    }
+
+    /**
+     * Error notice for the sender of a request
+     *
+     * @param text error message
+     * @return encoded frame
+     */
+    public static OutboundFrame error(String text) {
+        WireMessage line = new WireMessage(LineKind.error, System.currentTimeMillis(), WireMessage.NO_USER, new int[0], text);
+        return build(ResponseType.DIRECT_MESSAGE, null, false, line::write);
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * What to do when a connection's outbound queue is full
+ */
+enum OverflowPolicy {
+    drop_oldest,    // Drop the oldest droppable frame
+    disconnect,     // Disconnect the slow client
+    coalesce        // Replace a queued frame with the same key, otherwise drop the oldest droppable frame
+}
+
+/**
+ * Bounded queue of frames waiting to be written to one connection.
+ * Filled by any session thread, drained by the connection's single writer.
+ * The queue holds a reference to each frame it keeps, see {@link OutboundFrame#release}
+ */
+public class OutboundQueue {
+    // Totals over all connections
+    public static final LongAdder DROPPED_FRAMES = new LongAdder();
+    public static final LongAdder COALESCED_FRAMES = new LongAdder();
+    public static final LongAdder OVERFLOW_DISCONNECTS = new LongAdder();
+    public static final AtomicInteger MAX_DEPTH = new AtomicInteger();   // Deepest queue seen since the last report
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<OutboundFrame> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed = false;
+    private boolean woken = false;      // Writer has other work, such as a new file transfer
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queue a frame, applying the overflow policy if the queue is full
+     *
+     * @param frame outbound frame
+     * @return false if the connection has to be disconnected
+     */
+    public boolean offer(OutboundFrame frame) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (frames.size() >= capacity && !makeRoom(frame)) {
+                OVERFLOW_DISCONNECTS.increment();
+                return false;
+            }
+            // A coalesced or dropped new frame has already been handled
+            if (frames.size() < capacity) {
+                frame.retain();
+                frames.add(frame);
+            }
+            MAX_DEPTH.accumulateAndGet(frames.size(), Math::max);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Free a slot for the new frame, or take its place. Caller holds the lock
+     *
+     * @param frame new frame
+     * @return false if no room can be made
+     */
+    private boolean makeRoom(OutboundFrame frame) {
+        if (policy == OverflowPolicy.disconnect) return false;
+
+        if (policy == OverflowPolicy.coalesce && frame.getKey() != null) {
+            // Swap the new frame in at the position of the one it replaces
+            ArrayDeque<OutboundFrame> rebuilt = new ArrayDeque<>(frames.size());
+            boolean replaced = false;
+            for (OutboundFrame queued : frames) {
+                if (!replaced && frame.getKey().equals(queued.getKey())) {
+                    frame.retain();
+                    queued.release();
+                    rebuilt.add(frame);
+                    replaced = true;
+                } else {
+                    rebuilt.add(queued);
+                }
+            }
+            if (replaced) {
+                frames.clear();
+                frames.addAll(rebuilt);
+                COALESCED_FRAMES.increment();
+                return true;
+            }
+        }
+
+        Iterator<OutboundFrame> iterator = frames.iterator();
+        while (iterator.hasNext()) {
+            OutboundFrame queued = iterator.next();
+            if (queued.isDroppable()) {
+                iterator.remove();
+                queued.release();
+                DROPPED_FRAMES.increment();
+                return true;
+            }
+        }
+        if (frame.isDroppable()) {
+            // Nothing older can go, so the new frame is dropped instead
+            DROPPED_FRAMES.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take the next frame without waiting
+     *
+     * @return next frame, null if the queue is empty
+     */
+    public OutboundFrame poll() {
+        lock.lock();
+        try {
+            return frames.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next frame
+     *
+     * @param timeout maximum time to wait
+     * @param unit    time unit
+     * @return next frame, null on timeout, on wake up or once the queue is closed
+     * @throws InterruptedException
+     */
+    public OutboundFrame take(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed && !woken) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            woken = false;
+            return frames.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up a writer waiting in take
+     */
+    public void wakeUp() {
+        lock.lock();
+        try {
+            woken = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting frames and drop the queued ones, once the writer has stopped
+     */
+    public void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            OutboundFrame frame;
+            while ((frame = frames.poll()) != null) {
+                frame.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting frames and wake up the writer
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
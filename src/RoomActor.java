@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single writer of a chat room's live state. Joins, leaves, messages and upload notices of the room are queued
+ * in its mailbox and handled one at a time, in arrival order, by one of the server's room workers. The room's
+ * members, statuses and online connections are therefore only changed by one thread at a time, without locks,
+ * and every client of the room sees its events in the same order. Rooms share the worker pool, a busy room
+ * keeps at most one worker. An actor is retired when its room is closed, and a new one is made when the room
+ * is opened again
+ */
+public class RoomActor {
+    private static final int MAX_EVENTS_PER_RUN = 64;   // Events handled before the worker moves on to other rooms
+
+    private final ChatRoom room;
+    private final Executor workers;
+    private final ConcurrentHashMap<String, ClientConnection> onlineClients = new ConcurrentHashMap<>(); // Online clients mapped with user id. Changed by room events only, also read by the statistics reporter
+    private final ConcurrentLinkedQueue<FutureTask<?>> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final RoomPresence presence;
+    private boolean retired = false;    // Set by the last event, once the room is being closed
+    private volatile long lastActive = System.currentTimeMillis();  // Time the room last handled an event
+    private final LongAdder messages = new LongAdder();    // Chat messages sent in the room since it was opened
+
+    public RoomActor(ChatRoom room, Executor workers) {
+        this.room = room;
+        this.workers = workers;
+        this.presence = new RoomPresence(room, onlineClients);
+    }
+
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    public ConcurrentHashMap<String, ClientConnection> getOnlineClients() {
+        return onlineClients;
+    }
+
+    public RoomPresence getPresence() {
+        return presence;
+    }
+
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    /**
+     * Count a chat message sent in the room. Room event
+     */
+    public void countMessage() {
+        messages.increment();
+    }
+
+    public long getMessageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * Room event that returns nothing
+     */
+    public interface Event {
+        void handle() throws IOException;
+    }
+
+    /**
+     * Queue an event and wait until the room has handled it. Waiting keeps a client from queueing events
+     * faster than its room handles them
+     *
+     * @param event room event
+     * @throws IOException
+     */
+    public void run(Event event) throws IOException {
+        call(() -> {
+            event.handle();
+            return null;
+        });
+    }
+
+    /**
+     * Queue an event and wait for its result
+     *
+     * @param event room event
+     * @return event result
+     * @throws IOException
+     */
+    public <T> T call(Callable<T> event) throws IOException {
+        FutureTask<T> task = queue(event);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for room " + room.getId());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Queue an event without waiting for it, for timers. Errors are only logged, and the event is skipped
+     * if the room is closed by then
+     *
+     * @param event room event
+     */
+    public void post(Event event) {
+        queue(() -> {
+            try {
+                event.handle();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        });
+    }
+
+    private <T> FutureTask<T> queue(Callable<T> event) {
+        FutureTask<T> task = new FutureTask<>(() -> {
+            if (retired) {
+                throw new RetiredException(room.getId());
+            }
+            return event.call();
+        });
+        mailbox.add(task);
+        if (scheduled.compareAndSet(false, true)) {
+            workers.execute(this::handleEvents);
+        }
+        return task;
+    }
+
+    /**
+     * Handle one last event, events queued after it fail with a {@link RetiredException}
+     *
+     * @param event last room event, returns false to keep the actor going
+     * @return true if the actor is retired
+     * @throws IOException
+     */
+    public boolean retire(Callable<Boolean> event) throws IOException {
+        return call(() -> retired = event.call());
+    }
+
+    /**
+     * Event sent to an actor whose room has been closed. The room has to be opened again, here or on another node
+     */
+    public static class RetiredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RetiredException(String roomId) {
+            super("Room " + roomId + " has been closed");
+        }
+    }
+
+    /**
+     * Handle queued events in order, then give the worker back
+     */
+    private void handleEvents() {
+        FutureTask<?> event;
+        lastActive = System.currentTimeMillis();
+        for (int i = 0; i < MAX_EVENTS_PER_RUN && (event = mailbox.poll()) != null; i++) {
+            event.run();
+        }
+        scheduled.set(false);
+
+        // Events left for the next run, or one that arrived after the mailbox was seen empty
+        if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+            workers.execute(this::handleEvents);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Who is online in a chat room, as its clients see it. A client gets the whole roster once, in one ROSTER frame,
+ * and from then on PRESENCE frames with the members whose status changed. Changes are collected for
+ * {@link ServerConfig#PRESENCE_TICK_MS} and sent together, and a member who goes offline and online again
+ * within a tick is not sent at all. Both frames carry the usernames of their handles, so a roster of any size
+ * is one frame. Every change increments the presence version: a delta says which versions it covers, and a
+ * client that finds a gap, because a delta was dropped from its queue, asks for the roster again.
+ * Only used from room events
+ */
+public class RoomPresence {
+    private final ChatRoom room;
+    private final Map<String, ClientConnection> onlineClients;
+    private final LinkedHashMap<User, Status> changed = new LinkedHashMap<>();    // Status at the last delta of each member changed since
+    private int version = 0;            // Number of changes so far
+    private int sentVersion = 0;        // Version of the last delta
+
+    public RoomPresence(ChatRoom room, Map<String, ClientConnection> onlineClients) {
+        this.room = room;
+        this.onlineClients = onlineClients;
+    }
+
+    /**
+     * Change a member's status, to be sent with the next delta
+     *
+     * @param user   member
+     * @param status new status
+     * @return true if this is the first change since the last delta, which then has to be scheduled
+     */
+    public boolean setStatus(User user, Status status) {
+        boolean first = changed.isEmpty();
+        changed.putIfAbsent(user, user.getStatus());
+        room.setUserStatus(user, status);
+        version++;
+        return first;
+    }
+
+    /**
+     * @return roster of every member, at the current version
+     */
+    public OutboundFrame roster() {
+        ArrayList<User> members = new ArrayList<>(room.getUsers());
+        return OutboundFrame.roster(room, version, members);
+    }
+
+    /**
+     * Send the changes since the last delta to every online client
+     */
+    public void flush() {
+        if (changed.isEmpty()) return;
+        List<User> members = new ArrayList<>();
+        for (Map.Entry<User, Status> entry : changed.entrySet()) {
+            if (entry.getKey().getStatus() != entry.getValue()) {
+                members.add(entry.getKey());
+            }
+        }
+        changed.clear();
+        // Nothing to send if every change was undone, the next delta covers these versions too
+        if (members.isEmpty()) return;
+
+        OutboundFrame frame = OutboundFrame.presence(room, sentVersion, version, members);
+        sentVersion = version;
+        for (ClientConnection client : onlineClients.values()) {
+            client.send(frame);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of a chat room, replacing Java serialization. Version 1 is
+ * [int magic][byte version][long journal seq][string room id][varint spilled]
+ * [varint member count][string id][name username]...
+ * [varint message count][varlong timestamp delta][byte visibility][name sender][varint recipient count][name recipient]...[string text]...
+ * [int CRC32C of everything before it].
+ * A string is [varint UTF-8 length][UTF-8 bytes]. A name is 0 for none, 1 followed by the string of a new username,
+ * or the index + 2 of a username written before, so each username is written once per snapshot.
+ * The file is decoded as it is read, messages go straight into the room, and a reader rejects versions newer than its own
+ */
+public class RoomSnapshot {
+    public static final int MAGIC = 0x43525331;   // "CRS1"
+    public static final byte VERSION = 1;
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;  // Longer strings and recipient lists are taken as damage, nothing is allocated for them
+    private static final Visibility[] VISIBILITIES = Visibility.values();
+
+    private final ChatRoom room;
+    private final long seq;
+
+    RoomSnapshot(ChatRoom room, long seq) {
+        this.room = room;
+        this.seq = seq;
+    }
+
+    public ChatRoom getRoom() {
+        return room;
+    }
+
+    /**
+     * @return sequence of the last journal record folded into the snapshot
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Encode a room
+     *
+     * @param room chat room
+     * @param seq  sequence of the last journal record the room holds
+     * @param out  output, left open
+     * @throws IOException
+     */
+    public static void write(ChatRoom room, long seq, OutputStream out) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32C());
+        Output output = new Output(new DataOutputStream(checked));
+        output.out.writeInt(MAGIC);
+        output.out.writeByte(VERSION);
+        output.out.writeLong(seq);
+        room.writeSnapshot(output);
+        output.out.flush();
+        new DataOutputStream(out).writeInt((int) checked.getChecksum().getValue());
+    }
+
+    /**
+     * Decode a room
+     *
+     * @param in input, left open
+     * @return room and journal sequence
+     * @throws IOException if the snapshot is damaged or of an unknown version
+     */
+    public static RoomSnapshot read(InputStream in) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32C());
+        Input input = new Input(new DataInputStream(checked));
+        if (input.in.readInt() != MAGIC) {
+            throw new IOException("Not a room snapshot");
+        }
+        input.version = input.in.readByte();
+        if (input.version < 1 || input.version > VERSION) {
+            throw new IOException("Unsupported room snapshot version " + input.version);
+        }
+        long seq = input.in.readLong();
+        ChatRoom room = ChatRoom.readSnapshot(input);
+        int expected = (int) checked.getChecksum().getValue();
+        if (new DataInputStream(in).readInt() != expected) {
+            room.close();
+            throw new IOException("Room snapshot of " + room.getId() + " is damaged");
+        }
+        return new RoomSnapshot(room, seq);
+    }
+
+    /**
+     * Encoder of the snapshot fields
+     */
+    public static class Output {
+        private final DataOutputStream out;
+        private final HashMap<String, Integer> names = new HashMap<>();
+        private long lastTimestamp = 0;
+
+        private Output(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                out.writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        public void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public void writeName(String username) throws IOException {
+            if (username == null) {
+                writeVarInt(0);
+                return;
+            }
+            Integer index = names.get(username);
+            if (index != null) {
+                writeVarInt(index + 2);
+                return;
+            }
+            names.put(username, names.size());
+            writeVarInt(1);
+            writeString(username);
+        }
+
+        public void writeUser(User user) throws IOException {
+            writeString(user.getId());
+            writeName(user.getUsername());
+        }
+
+        public void writeMessage(ChatMessage message) throws IOException {
+            // Zigzag delta, timestamps of earlier versions are 0
+            long delta = message.getTimestamp() - lastTimestamp;
+            lastTimestamp = message.getTimestamp();
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            out.writeByte(message.getVisibility().ordinal());
+            writeName(message.getSender());
+            writeVarInt(message.getRecipients().length);
+            for (String recipient : message.getRecipients()) {
+                writeName(recipient);
+            }
+            writeString(message.getText());
+        }
+    }
+
+    /**
+     * Decoder of the snapshot fields
+     */
+    public static class Input {
+        private final DataInputStream in;
+        private final ArrayList<String> names = new ArrayList<>();
+        private long lastTimestamp = 0;
+        private int version;
+
+        private Input(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return format version of the snapshot being read
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint in room snapshot");
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint in room snapshot");
+        }
+
+        public String readString() throws IOException {
+            int length = readVarInt();
+            if (length < 0 || length > MAX_LENGTH) {
+                throw new IOException("Malformed string in room snapshot");
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public String readName() throws IOException {
+            int code = readVarInt();
+            if (code == 0) return null;
+            if (code == 1) {
+                String username = readString();
+                names.add(username);
+                return username;
+            }
+            if (code < 0 || code - 2 >= names.size()) {
+                throw new IOException("Unknown username " + code + " in room snapshot");
+            }
+            return names.get(code - 2);
+        }
+
+        public User readUser() throws IOException {
+            return new User(readString(), readName(), Status.offline);
+        }
+
+        public ChatMessage readMessage() throws IOException {
+            long zigzag = readVarLong();
+            lastTimestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+            int visibility = in.readUnsignedByte();
+            if (visibility >= VISIBILITIES.length) {
+                throw new IOException("Unknown message visibility " + visibility + " in room snapshot");
+            }
+            String sender = readName();
+            int count = readVarInt();
+            if (count < 0 || count > MAX_LENGTH) {
+                throw new IOException("Malformed message in room snapshot");
+            }
+            String[] recipients = new String[count];
+            for (int i = 0; i < recipients.length; i++) {
+                recipients[i] = readName();
+            }
+            return new ChatMessage(lastTimestamp, VISIBILITIES[visibility], sender, recipients, readString());
+        }
+    }
+}
@@ -3,10 +3,18 @@ import javafx.util.Pair;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Enum of client's request types
@@ -17,195 +25,475 @@ enum RequestType {
     DOWNLOAD,
     FILES,
     LOGOUT,
-    USERS;
+    USERS,
+    UPLOAD_CHUNK,
+    UPLOAD_DONE,
+    HISTORY,
+    COMPRESS;
 }
 
 /**
- * Server of the chat room app
+ * Server of the chat room app, alone or as a node of a {@link Cluster}
  */
-public class Server {
-    public static final int SERVER_PORT = 8080;
+public class Server implements Cluster.RoomHost {
+    public static final int SERVER_PORT = ServerConfig.SERVER_PORT;
     public static final RequestType[] REQUEST_TYPES = RequestType.values(); // Constant array of all request type
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;   // Largest file chunk a client may send
+    public static final int MAX_MESSAGE_SIZE = 1024 * 1024; // Largest chat message a client may send, in UTF-8 bytes
     private ConcurrentHashMap<String, ChatRoom> chatRooms = new ConcurrentHashMap<>();  // Each chat room object is mapped with their id
-    private ConcurrentHashMap<String, ConcurrentHashMap<String, DataOutputStream>> onlineClientsWithRoomId = new ConcurrentHashMap<>(); // List of online clients is mapped with chat room id
+    private ConcurrentHashMap<String, RoomActor> roomActors = new ConcurrentHashMap<>();  // Actor of each open chat room, mapped with room id
+    private ChatRoomStore store = new ChatRoomStore(chatRooms);  // Snapshots and journals of all chat rooms
+    private FileStore fileStore;  // Files shared in all chat rooms
+    private Executor connectionExecutor = (runnable) -> new Thread(runnable).start();  // Runs connection readers and writers in thread and virtual mode
+    private ExecutorService roomWorkers = Executors.newFixedThreadPool(ServerConfig.ROOM_WORKERS, runnable -> new Thread(runnable, "room-worker"));  // Run the events of all rooms
+    private ReentrantLock roomsLock = new ReentrantLock();  // Held while a room is opened or released
+    private ScheduledExecutorService presenceTicker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-ticker");
+        thread.setDaemon(true);
+        return thread;
+    });  // Queues each room's presence delta once its tick is over
+    private final int port;
+    private final Cluster cluster;
 
-    public static void main(String[] args) {
-        Server server = new Server();
+    /**
+     * @param port    client port
+     * @param cluster cluster this server is a node of
+     */
+    public Server(int port, Cluster cluster) {
+        this.port = port;
+        this.cluster = cluster;
+        this.fileStore = new FileStore(cluster.isEnabled() ? cluster.getSelf() : null);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Server server = new Server(SERVER_PORT, Cluster.fromConfig());
         server.loadPrevSessionInfo();
         server.execute();
     }
 
     /**
-     * Save all chat rooms locally
+     * On server start, prepare the room and file stores, and join the cluster.
+     * Rooms are loaded from their snapshots and journals when a client joins them, and closed again once idle
+     *
+     * @throws IOException
      */
-    private void saveCurrentSessionInfo() {
-        if (!chatRooms.isEmpty()) {
+    public void loadPrevSessionInfo() throws IOException {
+        store.load();
+        fileStore.load();
+        Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+        cluster.start(this);
+        startRoomEvictor();
+    }
 
-            for (ChatRoom room : chatRooms.values()) {
-                try {
-                    saveChatRoomHistory(room);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Start server socket and listen for client connections
+     */
+    public void execute() {
+        startStatsReporter();
+        if (ServerConfig.METRICS_ENABLED) {
+            new MetricsExporter(port, roomActors::values).start();
+        }
+        if (ServerConfig.SERVER_MODE == ServerMode.nio) {
+            new NioServer(this, port).execute();
+            return;
+        }
+
+        if (ServerConfig.SERVER_MODE == ServerMode.virtual) {
+            connectionExecutor = newVirtualThreadExecutor();
+        }
+        System.out.printf("Accepting Connection on port %d..", port);
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                Metrics.CONNECTIONS_ACCEPTED.increment();
+                System.out.println("Request received from " + ServerEvents.acceptConnection(clientSocket.getInetAddress()));
+                connectionExecutor.execute(new ClientSession(clientSocket));
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Save the chat room object
+     * Executor starting one virtual thread per task. Looked up at runtime so the server still runs
+     * on JDKs without virtual threads, where it falls back to platform threads
      *
-     * @param room the chat room instance
-     * @throws IOException
+     * @return virtual thread executor
      */
-    private void saveChatRoomHistory(ChatRoom room) throws IOException {
-        // Chatroom objects are saved inside ChatRooms folder
-        File dir = new File("./ChatRooms");
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
-        File file = new File("./ChatRooms/ChatRoom_" + room.getId() + ".obj");
-        FileOutputStream fos = new FileOutputStream(file, false);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(room);
-        fos.close();
-        oos.close();
+    private static Executor newVirtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available on this JDK, using platform threads");
+            return (runnable) -> new Thread(runnable).start();
+        }
     }
 
     /**
-     * On server start, load locally saved chat rooms objects
+     * Parse tagged user and message from private message
+     *
+     * @param message private message
+     * @return parsed users and message, an empty message if there is only tags
      */
-    private void loadPrevSessionInfo() {
-        File[] files = new File("./ChatRooms").listFiles(new FileFilter() {
-            @Override
-            public boolean accept(File pathname) {
-                return pathname.getName().toLowerCase().endsWith(".obj");
+    static Pair<ArrayList<String>, String> parseUsersAndMessage(String message) {
+        String msg = message.trim();
+        int idx = msg.length();
+        ArrayList<String> users = new ArrayList<>();
+        for (int i = 0; i < msg.length(); i++) {
+            if (msg.charAt(i) == ' ') {
+                if (msg.charAt(i + 1) != '@') {
+                    idx = i;
+                    break;
+                }
             }
+        }
+        for (String userTag : msg.substring(0, idx).split(" ")) {
+            users.add(userTag.replace("@", ""));
+        }
+        msg = idx < msg.length() ? msg.substring(idx + 1) : "";
+        return new Pair<>(users, msg);
+    }
+
+    /**
+     * Periodically print outbound queue statistics
+     */
+    private void startStatsReporter() {
+        if (ServerConfig.STATS_INTERVAL_S <= 0) return;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-reporter");
+            thread.setDaemon(true);
+            return thread;
         });
+        reporter.scheduleAtFixedRate(() -> {
+            long depth = 0;
+            for (RoomActor actor : roomActors.values()) {
+                for (ClientConnection client : actor.getOnlineClients().values()) {
+                    depth += client.depth();
+                }
+            }
+            System.out.printf("Outbound queues: %d frames queued, max depth %d, %d dropped, %d coalesced, %d slow clients disconnected%n",
+                    depth, OutboundQueue.MAX_DEPTH.getAndSet(0), OutboundQueue.DROPPED_FRAMES.sum(),
+                    OutboundQueue.COALESCED_FRAMES.sum(), OutboundQueue.OVERFLOW_DISCONNECTS.sum());
+            if (cluster.isEnabled()) {
+                System.out.printf("Cluster: %d of %d nodes alive, %d rooms open here, %d users online on other nodes%n",
+                        cluster.getLiveNodeCount(), cluster.getNodeCount(), roomActors.size(), cluster.getRemoteOnlineUsers());
+            }
+        }, ServerConfig.STATS_INTERVAL_S, ServerConfig.STATS_INTERVAL_S, TimeUnit.SECONDS);
+    }
 
-        // In case of a fresh start
-        if (files == null) return;
+    /**
+     * Periodically close rooms without online clients that have been idle for {@link ServerConfig#ROOM_IDLE_CLOSE_S},
+     * and the least recently active of them while more than {@link ServerConfig#ROOM_MAX_OPEN} rooms are open
+     */
+    private void startRoomEvictor() {
+        if (ServerConfig.ROOM_IDLE_CLOSE_S <= 0 && ServerConfig.ROOM_MAX_OPEN <= 0) return;
+        long period = ServerConfig.ROOM_IDLE_CLOSE_S > 0 ? Math.min(ServerConfig.ROOM_IDLE_CLOSE_S, 30) : 30;
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "room-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::closeIdleRooms, period, period, TimeUnit.SECONDS);
+    }
 
-        for (File file : files) {
-            try {
-                FileInputStream fis = new FileInputStream(file);
-                ObjectInputStream ois = new ObjectInputStream(fis);
-                ChatRoom room = (ChatRoom) ois.readObject();
-                // On server start, reset all users to offline
-                for (User user : room.getUsers()) {
-                    user.setStatus(Status.offline);
-                }
-                chatRooms.put(room.getId(), room);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+    private void closeIdleRooms() {
+        long now = System.currentTimeMillis();
+        ArrayList<RoomActor> idle = new ArrayList<>();
+        for (RoomActor actor : roomActors.values()) {
+            if (actor.getOnlineClients().isEmpty()) {
+                idle.add(actor);
+            }
+        }
+        idle.sort(Comparator.comparingLong(RoomActor::getLastActive));
+
+        int open = roomActors.size();
+        int closed = 0;
+        for (RoomActor actor : idle) {
+            boolean expired = ServerConfig.ROOM_IDLE_CLOSE_S > 0 && now - actor.getLastActive() >= ServerConfig.ROOM_IDLE_CLOSE_S * 1000L;
+            boolean tooMany = ServerConfig.ROOM_MAX_OPEN > 0 && open > ServerConfig.ROOM_MAX_OPEN;
+            // Least recently active first, the rest are newer
+            if (!expired && !tooMany) break;
+            if (closeRoom(actor.getRoom().getId(), null)) {
+                open--;
+                closed++;
             }
         }
+        if (closed > 0) {
+            System.out.printf("Closed %d idle rooms, %d open%n", closed, open);
+        }
     }
 
     /**
-     * Start server socket and listen for client connections
+     * Close an open room: its actor handles a last event, then the room is saved and dropped from memory
+     *
+     * @param roomId   chat room id
+     * @param redirect frame sending the room's clients to another node, null to close the room only if none is online
+     * @return true if the room was closed
      */
-    public void execute() {
+    private boolean closeRoom(String roomId, OutboundFrame redirect) {
+        roomsLock.lock();
+        try {
+            RoomActor actor = roomActors.get(roomId);
+            if (actor == null) return false;
+            boolean retired = actor.retire(() -> {
+                if (redirect == null) return actor.getOnlineClients().isEmpty();
+                for (ClientConnection client : actor.getOnlineClients().values()) {
+                    client.send(redirect);
+                    client.close();
+                }
+                actor.getOnlineClients().clear();
+                return true;
+            });
+            if (!retired) return false;
+            roomActors.remove(roomId);
+            store.release(roomId);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            roomsLock.unlock();
+        }
+    }
 
-        System.out.printf("Accepting Connection on port %d..", SERVER_PORT);
-        try (ServerSocket serverSocket = new ServerSocket(SERVER_PORT)) {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Request received from " + clientSocket.getInetAddress().getHostName());
-                new ClientThread(clientSocket).start();
+    /**
+     * Get the actor of a chat room, opening the room if it is not open yet
+     *
+     * @param roomId chat room id
+     * @return room actor
+     * @throws IOException
+     */
+    private RoomActor getRoomActor(String roomId) throws IOException {
+        RoomActor actor = roomActors.get(roomId);
+        if (actor != null) return actor;
+
+        // The room may have just moved here, its old owner saves it first
+        cluster.awaitRelease(roomId);
+        // Opening reads the snapshot and journal, which is kept out of computeIfAbsent
+        roomsLock.lock();
+        try {
+            actor = roomActors.get(roomId);
+            if (actor == null) {
+                ChatRoom room = store.open(roomId);
+                if (cluster.isEnabled()) {
+                    fileStore.reload(roomId);
+                }
+                actor = new RoomActor(room, roomWorkers);
+                roomActors.put(roomId, actor);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return actor;
+        } finally {
+            roomsLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<String> getOpenRooms() {
+        return new ArrayList<>(roomActors.keySet());
+    }
+
+    @Override
+    public void releaseRoom(String roomId) {
+        // Send the room's clients to its new owner
+        String owner = cluster.ownerOf(roomId);
+        if (closeRoom(roomId, OutboundFrame.redirect(owner))) {
+            System.out.println("Room " + roomId + " moved to " + owner);
         }
     }
 
     /**
-     * Client thread to handle each client request
+     * Create a session for a connection served by the NIO core
+     *
+     * @param connection output side of the connection
+     * @return client session
+     */
+    ClientSession newSession(ClientConnection connection) {
+        return new ClientSession(connection);
+    }
+
+    /**
+     * Client session to handle each client request.
+     * In thread and virtual mode the session owns a thread blocking on the socket,
+     * in NIO mode the NIO core feeds it one complete request at a time.
+     * Requests that change the room are handed to the room's actor, the session reads and pages history itself
      */
-    class ClientThread extends Thread {
+    class ClientSession implements Runnable {
         Socket socket;
+        ClientConnection connection;    // Outbound queue of this client
         String userId;
         String roomId;
+        String username;
         DataInputStream dis;
-        DataOutputStream dos;
-        ConcurrentHashMap<String, DataOutputStream> onlineClients;  // Keep the record of all online clients in the current room
+        RoomActor actor;    // Actor of the current room
+        ConcurrentHashMap<String, ClientConnection> onlineClients;  // Keep the record of all online clients in the current room, only used in room events
+        HashMap<Integer, UploadTransfer> uploads = new HashMap<>();  // Uploads in progress, mapped with the client's transfer id
+        int downloadIds = 0;
+        volatile boolean closed = false;
 
-        public ClientThread(Socket socket) {
+        public ClientSession(Socket socket) {
             this.socket = socket;
         }
 
+        public ClientSession(ClientConnection connection) {
+            this.connection = connection;
+        }
+
         @Override
         public void run() {
             try {
-                String ip = socket.getInetAddress().getHostName();
+                String ip = socket.getInetAddress().getHostAddress();
                 System.out.println("Accepting connection from ip " + ip);
 
-                dis = new DataInputStream(socket.getInputStream());
-                dos = new DataOutputStream(socket.getOutputStream());
-                String username = dis.readUTF();
-                roomId = dis.readUTF();
-
-                // Check if user is an existing user in current chat room
-                User user = getExistingUserByUsername(username);
-                onlineClients = onlineClientsWithRoomId.getOrDefault(roomId, new ConcurrentHashMap<String, DataOutputStream>());
-
-                // Adding/updating online clients
-                if (user != null) {
-                    // If existing user, then update the status
-                    userId = user.getId();
-                    user.setStatus(Status.online);
-                    onlineClients.put(user.getId(), dos);
-                } else {
-                    // If new user, create new user and assign id
-                    userId = UUID.randomUUID().toString();
-                    user = new User(userId, username, Status.online);
-                    onlineClients.put(userId, dos);
+                dis = new DataInputStream(Metrics.countIn(socket.getInputStream()));
+                connection = ClientConnection.open(socket, connectionExecutor);
+                login();
+                while (!closed) {
+                    handleRequest();
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                close();
+            }
+        }
+
+        /**
+         * Read username and room id, then join the chat room
+         *
+         * @throws IOException
+         */
+        void login() throws IOException {
+            username = dis.readUTF();
+            roomId = dis.readUTF();
+            while (true) {
+                if (!cluster.isLocal(roomId)) {
+                    connection.send(OutboundFrame.redirect(cluster.ownerOf(roomId)));
+                    close();
+                    return;
+                }
+                try {
+                    actor = getRoomActor(roomId);
+                } catch (Cluster.HandoffException e) {
+                    System.out.println(e.getMessage());
+                    connection.send(OutboundFrame.error("Room " + roomId + " is moving between servers, please try again"));
+                    close();
+                    return;
+                }
+                onlineClients = actor.getOnlineClients();
+                try {
+                    store.awaitCommit(roomId, actor.call(this::join));
+                    return;
+                } catch (RoomActor.RetiredException e) {
+                    // The room was closed just before the join, open it again
                 }
+            }
+        }
+
+        /**
+         * Join the current room as a new or returning member. Room event
+         *
+         * @return journal sequence of the new member, 0 for a returning member
+         * @throws IOException
+         */
+        private long join() throws IOException {
+            ChatRoom room = actor.getRoom();
+            // Check if user is an existing user in current chat room
+            User user = room.getUserByUsername(username);
+            long seq = 0;
+            if (user != null) {
+                userId = user.getId();
+            } else {
+                // If new user, create new user and assign id
+                userId = UUID.randomUUID().toString();
+                user = new User(userId, username, Status.offline);
+                seq = store.addUser(room, user);
+            }
+            onlineClients.put(userId, connection);
+            setStatus(user, Status.online);
+            cluster.publishPresence(roomId, username, Status.online);
 
-                // Map current room's clients to room id
-                onlineClientsWithRoomId.put(roomId, onlineClients);
+            // Other clients show that the user joined when the presence delta arrives
+            loadChatHistory(Integer.MAX_VALUE);
+            return seq;
+        }
 
-                addUserToChatRoom(user, roomId);
-                loadChatHistory(dos, username);
-                broadCastMessage(String.format("%s joined", username), true);
+        /**
+         * Read one request and dispatch it
+         *
+         * @throws IOException
+         */
+        void handleRequest() throws IOException {
+            int method = dis.readInt();
+            // Handle invalid request
+            if (method < 0 || method >= REQUEST_TYPES.length) {
+                throw new IOException("Invalid request type " + method);
+            }
 
-                while (!isInterrupted()) {
-                    int method = dis.readInt();
-                    // Handle invalid request
-                    if (method < 0 || method >= REQUEST_TYPES.length) {
-                        System.out.println("Invalid request type");
-                        System.exit(0);
+            RequestType requestType = REQUEST_TYPES[method];
+            Metrics.frameIn(requestType);
+            switch (requestType) {
+                case MESSAGE:
+                    sendMessage(username);
+                    break;
+                case UPLOAD:
+                    uploadFile();
+                    break;
+                case UPLOAD_CHUNK:
+                    uploadChunk();
+                    break;
+                case UPLOAD_DONE:
+                    uploadDone();
+                    break;
+                case FILES:
+                    getAllFiles();
+                    break;
+                case DOWNLOAD:
+                    downloadFile();
+                    break;
+                case LOGOUT:
+                    close();
+                    break;
+                case USERS:
+                    actor.run(this::loadAllUsersInChatRoom);
+                    break;
+                case HISTORY:
+                    loadChatHistory(dis.readInt());
+                    break;
+                case COMPRESS:
+                    // Not answering leaves the client's output plain
+                    if (ServerConfig.COMPRESSION_ENABLED) {
+                        connection.enableCompression();
                     }
+                    break;
+                default:
+                    System.out.println("Unknown request type received");
+                    break;
+            }
+        }
 
-                    RequestType requestType = REQUEST_TYPES[method];
-                    switch (requestType) {
-                        case MESSAGE:
-                            sendMessage(username);
-                            break;
-                        case UPLOAD:
-                            uploadFile();
-                            break;
-                        case FILES:
-                            getAllFiles();
-                            break;
-                        case DOWNLOAD:
-                            downloadFile();
-                            break;
-                        case LOGOUT:
-                            logoutUser();
-                            break;
-                        case USERS:
-                            loadAllUsersInChatRoom();
-                            break;
-                        default:
-                            System.out.println("Unknown request type received");
-                            break;
-                    }
+        /**
+         * Stop serving this client and close its connection once queued frames are written
+         */
+        void close() {
+            if (closed) return;
+            closed = true;
+            Metrics.CONNECTIONS_CLOSED.increment();
+            // A client that went away without logging out leaves the room too, so that it can be closed when idle
+            if (actor != null) {
+                try {
+                    actor.run(this::logoutUser);
+                } catch (IOException e) {
+                    // Room already closed, along with its online clients
+                }
+            }
+            if (connection != null) {
+                connection.close();
+            }
+            for (UploadTransfer upload : uploads.values()) {
+                try {
+                    upload.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                interrupt();
             }
         }
 
@@ -216,169 +504,193 @@ public class Server {
          * @throws IOException
          */
         private void sendMessage(String username) throws IOException {
-            String message = dis.readUTF();
+            String message = WireMessage.readText(dis, MAX_MESSAGE_SIZE);
+            long seq;
             if (message.trim().startsWith("@")) {
-                // If it's a private message, send directly to the recipient
+                // If it's a private message, send directly to the recipients
                 Pair<ArrayList<String>, String> parsedResult = parseUsersAndMessage(message);
-                String msg = parsedResult.getValue();
-                ChatRoom currentChatRoom = getCurrentChatRoom(roomId);
-                for (String parsedUsername : parsedResult.getKey()) {
-                    User user = getExistingUserByUsername(parsedUsername);
-                    User currentUser = currentChatRoom.getUserById(userId);
-                    sendDirectMessage(user.getId(), user.getUsername(), currentUser.getUsername(), msg, currentChatRoom);
+                if (parsedResult.getValue().isEmpty()) {
+                    connection.send(OutboundFrame.error("Private message has no text"));
+                    return;
                 }
+                seq = actor.call(() -> sendDirectMessage(parsedResult.getKey(), parsedResult.getValue()));
             } else {
-                broadCastMessage(username + ": " + message, false);
+                seq = actor.call(() -> broadCastMessage(message, false));
             }
+            store.awaitCommit(roomId, seq);
         }
 
         /**
-         * Parse tagged user and message from private message
+         * Send private message to the tagged users who are online, and store it once for all of them. Room event
          *
-         * @param message private message
-         * @return parsed users and message
+         * @param recipientUsernames tagged usernames
+         * @param message            private message
+         * @return journal sequence of the message, 0 if no recipient is online
          */
-        private Pair<ArrayList<String>, String> parseUsersAndMessage(String message) {
-            String msg = message.trim();
-            int idx = -1;
-            ArrayList<String> users = new ArrayList<>();
-            for (int i = 0; i < msg.length(); i++) {
-                if (msg.charAt(i) == ' ') {
-                    if (msg.charAt(i + 1) != '@') {
-                        idx = i;
-                        break;
-                    }
+        private long sendDirectMessage(ArrayList<String> recipientUsernames, String message) {
+            ArrayList<String> recipients = new ArrayList<>();
+            ArrayList<ClientConnection> recipientConnections = new ArrayList<>();
+            for (String recipientUsername : recipientUsernames) {
+                User user = getExistingUserByUsername(recipientUsername);
+                ClientConnection recipient = user == null ? null : onlineClients.get(user.getId());
+                if (recipient == null) {
+                    connection.send(OutboundFrame.error("Sorry this user is not online"));
+                } else if (!recipients.contains(recipientUsername)) {
+                    recipients.add(recipientUsername);
+                    recipientConnections.add(recipient);
                 }
             }
-            for (String userTag : msg.substring(0, idx).split(" ")) {
-                users.add(userTag.replace("@", ""));
+            if (recipients.isEmpty()) return 0;
+
+            ChatRoom room = actor.getRoom();
+            ChatMessage chat = ChatMessage.direct(username, recipients.toArray(new String[0]), message);
+            OutboundFrame frame = OutboundFrame.directMessage(room, chat);
+            for (ClientConnection recipient : recipientConnections) {
+                recipient.send(frame);
             }
-            msg = msg.substring(idx + 1);
-            return new Pair(users, msg);
+            connection.send(OutboundFrame.message(room, chat));
+            actor.countMessage();
+            return store.addChatHistory(room, chat);
         }
 
         /**
-         * Send private message
+         * Send a range of a file to client for download. The header announces the transfer and the checksum
+         * of the whole file, the content follows in chunks between chat frames. A client resumes
+         * an interrupted download by asking for the range after the bytes it already has
          *
-         * @param userId            recipient id
-         * @param recipientUsername recipient username
-         * @param currentUser       sender's username
-         * @param message           private message
-         * @param currentChatRoom   current chatroom
+         * @throws IOException
          */
-        private void sendDirectMessage(String userId, String recipientUsername, String currentUser, String message, ChatRoom currentChatRoom) {
-            try {
-                DataOutputStream recipient = onlineClientsWithRoomId.get(roomId).getOrDefault(userId, null);
-                if (recipient == null) {
-                    dos.writeInt(ResponseType.DIRECT_MESSAGE.ordinal());
-                    dos.writeUTF("ERROR");
-                    dos.writeUTF("Sorry this user is not online");
-                    dos.flush();
-                } else {
-                    Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-                    String recipientMessageWithTimeStamp = "[" + timestamp + "] " + "private message from @" + currentUser + ": " + message;
-                    recipient.writeInt(ResponseType.DIRECT_MESSAGE.ordinal());
-                    recipient.writeUTF(currentUser);
-                    recipient.writeUTF(recipientMessageWithTimeStamp);
-                    recipient.flush();
-                    dos.writeInt(ResponseType.MESSAGE.ordinal());
-                    String currentUserMessageWithTimeStamp = "[" + timestamp + "] " + "private message sent to @" + recipientUsername + ": " + message;
-                    dos.writeUTF(currentUserMessageWithTimeStamp);
-                    currentChatRoom.addChatHistory(recipientUsername + "-" + recipientMessageWithTimeStamp);
-                    currentChatRoom.addChatHistory(currentUser + "-" + currentUserMessageWithTimeStamp);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+        private void downloadFile() throws IOException {
+            String filename = new File(dis.readUTF()).getName();
+            String path = dis.readUTF();
+            long offset = dis.readLong();
+            long requestedLength = dis.readLong();  // -1 for the rest of the file
+            String hash = fileStore.lookup(roomId, filename);
+            File file = hash == null ? null : fileStore.blobFile(hash);
+            if (file == null || !file.isFile()) {
+                connection.send(OutboundFrame.message(filename + " does not exist"));
+                return;
             }
+
+            long fileSize = file.length();
+            if (offset < 0 || offset > fileSize) {
+                connection.send(OutboundFrame.error("Invalid download offset " + offset + " of " + filename));
+                return;
+            }
+            long length = requestedLength < 0 ? fileSize - offset : Math.min(requestedLength, fileSize - offset);
+            int transferId = ++downloadIds;
+            connection.send(OutboundFrame.build(ResponseType.DOWNLOAD, null, false, (out) -> {
+                out.writeInt(transferId);
+                out.writeLong(fileSize);
+                out.writeLong(offset);
+                out.writeLong(length);
+                out.writeUTF(hash);
+                out.writeUTF(path + "/" + filename);
+            }));
+            if (length == 0) {
+                connection.send(OutboundFrame.message(filename + " downloaded successfully"));
+                return;
+            }
+            // A compressed connection reads the content through a buffer to deflate it, unless the file is compressed already
+            boolean zeroCopy = connection.isZeroCopy() && (!connection.isCompressed() || Compression.isCompressed(filename));
+            connection.startTransfer(new DownloadTransfer(transferId, filename, file, offset, length, zeroCopy));
         }
 
         /**
-         * Send file to client for download
+         * Get all files inside current chat room
          *
          * @throws IOException
          */
-        private void downloadFile() throws IOException {
-            String filename = dis.readUTF();
-            String path = dis.readUTF();
-            File file = new File("./Files/" + roomId + "/" + filename);
+        private void getAllFiles() throws IOException {
+            String filenames = String.join(",", fileStore.list(roomId));
+            connection.send(OutboundFrame.build(ResponseType.FILES, null, false, (out) -> out.writeUTF(filenames)));
+        }
 
-            dos.writeInt(ResponseType.DOWNLOAD.ordinal());
-            dos.writeLong(file.length());
-            dos.writeUTF(path + "/" + filename);
-            FileInputStream fis = new FileInputStream(file);
-            int bytes;
-            byte[] buffer = new byte[(int) file.length()];
-            while ((bytes = fis.read(buffer, 0, buffer.length)) > 0) {
-                dos.write(buffer, 0, bytes);
+        /**
+         * Start receiving a file from client into the file store. The header carries the checksum of the file,
+         * and the reply tells the client where to start: at the end if the store already holds the content,
+         * after the bytes kept from an interrupted upload of the same content, or at the beginning.
+         * The content follows in UPLOAD_CHUNK requests, then UPLOAD_DONE with the checksum
+         *
+         * @throws IOException
+         */
+        private void uploadFile() throws IOException {
+            int transferId = dis.readInt();
+            String filename = new File(dis.readUTF()).getName();
+            long fileSize = dis.readLong();
+            long offset = dis.readLong();
+            String hash = dis.readUTF();
+            if (!FileStore.isHash(hash)) {
+                throw new IOException("Invalid checksum " + hash);
             }
-            dos.writeInt(ResponseType.MESSAGE.ordinal());
-            dos.writeUTF(filename + " downloaded successfully");
+            UploadTransfer upload = new UploadTransfer(fileStore, filename, hash, fileSize, offset);
+            uploads.put(transferId, upload);
+            connection.send(OutboundFrame.build(ResponseType.UPLOAD_READY, null, false, (out) -> {
+                out.writeInt(transferId);
+                out.writeLong(upload.getOffset());
+            }));
         }
 
         /**
-         * Get all files inside current chat room
+         * Receive one chunk of an upload
          *
          * @throws IOException
          */
-        private void getAllFiles() throws IOException {
-            ChatRoom currentChatRoom = getCurrentChatRoom(roomId);
-            File folder = new File("./Files/" + roomId);
-            if (!folder.exists()) {
-                folder.mkdirs();
+        private void uploadChunk() throws IOException {
+            int transferId = dis.readInt();
+            int length = dis.readInt();
+            if (length < 0 || length > MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid chunk length " + length);
             }
-            StringBuilder filenames = new StringBuilder();
-            File[] files = folder.listFiles();
-            for (File f : files) {
-                filenames.append(filenames.isEmpty() ? f.getName() : "," + f.getName());
+            UploadTransfer upload = uploads.get(transferId);
+            if (upload == null) {
+                // Chunk of an upload that failed earlier
+                dis.skipNBytes(length);
+                return;
+            }
+            try {
+                upload.write(dis, length);
+            } catch (IOException e) {
+                uploads.remove(transferId);
+                upload.close();
+                throw e;
             }
-            dos.writeInt(ResponseType.FILES.ordinal());
-            dos.writeUTF(filenames.toString());
         }
 
         /**
-         * Receive file from client and download to server folder
+         * Verify a completed upload against the client's checksum, and notify the room once the file is stored
          *
          * @throws IOException
          */
-        private void uploadFile() throws IOException {
-            String filePath = "./Files/" + roomId;
-            File dir = new File(filePath);
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-            String filename = dis.readUTF();
-            File file = new File(filePath + "/" + filename);
-            FileOutputStream fos = new FileOutputStream(file);
-            long fileSize = dis.readLong();
-            if (!(fileSize > 0)) {
+        private void uploadDone() throws IOException {
+            int transferId = dis.readInt();
+            String hash = dis.readUTF();
+            UploadTransfer upload = uploads.remove(transferId);
+            if (upload == null) return;
+            if (!upload.finish(hash)) {
+                connection.send(OutboundFrame.error(upload.getFilename() + " failed the integrity check, please upload it again"));
                 return;
             }
-            int bytes;
-            byte[] buffer = new byte[(int) fileSize];
-            while (fileSize > 0 && (bytes = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize))) != -1) {
-                fos.write(buffer, 0, bytes);
-                fileSize -= bytes;
+            if (!fileStore.link(roomId, upload.getFilename(), upload.getHash())) {
+                // Deleted since the upload found it in the store
+                connection.send(OutboundFrame.error(upload.getFilename() + " could not be stored, please upload it again"));
+                return;
             }
-            ChatRoom currentChatRoom = getCurrentChatRoom(roomId);
-            User currentUser = currentChatRoom.getUserById(userId);
-            broadCastMessage(filename + " uploaded by " + currentUser.getUsername(), true);
-            updateUploadedFile(filename);
+
+            actor.run(() -> {
+                broadCastMessage(upload.getFilename() + " uploaded by " + username, true);
+                updateUploadedFile(upload.getFilename());
+            });
         }
 
         /**
-         * Notify online clients of uploaded file
+         * Notify online clients of uploaded file. Room event
          *
          * @param filename uploaded file name
          */
         private void updateUploadedFile(String filename) {
-            onlineClients.forEach((key, value) -> {
-                try {
-                    value.writeInt(ResponseType.UPLOAD.ordinal());
-                    value.writeUTF(filename);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
+            OutboundFrame frame = OutboundFrame.upload(filename);
+            onlineClients.forEach((key, value) -> value.send(frame));
         }
 
         /**
@@ -388,137 +700,107 @@ public class Server {
          * @return
          */
         private User getExistingUserByUsername(String username) {
-            ChatRoom existingChatRoom = chatRooms.getOrDefault(roomId, null);
-            return existingChatRoom != null ? chatRooms.get(roomId).getUserByUsername(username) : null;
+            return actor.getRoom().getUserByUsername(username);
         }
 
         /**
-         * Get all users' username and status from room and send to clients
+         * Send all users' username and status to current user's client, in one roster frame. Room event
          *
          * @throws IOException
          */
         private void loadAllUsersInChatRoom() throws IOException {
-            ChatRoom room = chatRooms.get(roomId);
-            DataOutputStream dos = onlineClients.get(userId);
-            // Update current user's client with all user information
-            for (User user : room.getUsers()) {
-                dos.writeInt(ResponseType.USERS.ordinal());
-                dos.writeUTF(user.getUsername());
-                dos.writeInt(user.getStatus().ordinal());
-            }
-            // Update all other clients about current user
-            updateAllOnlineClients(Status.online.ordinal());
+            connection.send(actor.getPresence().roster());
         }
 
         /**
-         * Send current user information to other clients in this chat room
+         * Change a user's status. The room's clients are told with the next presence delta,
+         * which is queued as a room event when the tick is over. Room event
          *
-         * @param status current user's status
+         * @param user   room member
+         * @param status new status
          */
-        private void updateAllOnlineClients(int status) {
-            onlineClients.forEach((key, value) -> {
-                if (!key.equals(userId)) {
-                    try {
-                        value.writeInt(ResponseType.USERS.ordinal());
-                        value.writeUTF(chatRooms.get(roomId).getUserById(userId).getUsername());
-                        value.writeInt(status);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        private void setStatus(User user, Status status) {
+            RoomActor roomActor = actor;
+            RoomPresence presence = roomActor.getPresence();
+            if (!presence.setStatus(user, status)) return;
+            if (ServerConfig.PRESENCE_TICK_MS <= 0) {
+                presence.flush();
+                return;
+            }
+            presenceTicker.schedule(() -> roomActor.post(presence::flush), ServerConfig.PRESENCE_TICK_MS, TimeUnit.MILLISECONDS);
         }
 
         /**
-         * Get chat history of current chat room and send to current user's client
+         * Send one page of the current chat room's history to current user's client.
+         * On join the client gets the newest page, older pages are sent when it asks for them
          *
-         * @param client   current user's client
-         * @param username current client's user name
+         * @param before history position to page back from, as returned with the previous page
          * @throws IOException
          */
-        private void loadChatHistory(DataOutputStream client, String username) throws IOException {
-            if (chatRooms.containsKey(roomId)) {
-                for (String message : chatRooms.get(roomId).getChatHistory()) {
-                    if (message.contains("private message from @") || message.contains("private message sent to @")) {
-                        // If it's a private message, send only to the recipient of the message
-                        if (message.split("-")[0].equals(username)) {
-                            client.writeInt(ResponseType.MESSAGE.ordinal());
-                            client.writeUTF(message.substring(message.indexOf("-") + 1));
-                        }
-                    } else {
-                        client.writeInt(ResponseType.MESSAGE.ordinal());
-                        client.writeUTF(message);
-                    }
-                }
-            }
+        private void loadChatHistory(int before) throws IOException {
+            ChatRoom room = actor.getRoom();
+            // Only messages this user can see, private messages included
+            HistoryPage page = room.getChatHistoryBefore(before, ServerConfig.HISTORY_PAGE_SIZE, username);
+            connection.send(OutboundFrame.history(page.getCursor(), room, page.getMessages()));
         }
 
         /**
-         * Remove user from online clients. Note user is still considered a member of this chat room
+         * Remove user from online clients. Note user is still considered a member of this chat room. Room event
          *
          * @throws IOException
          */
         private void logoutUser() throws IOException {
-            ChatRoom currentChatRoom = getCurrentChatRoom(roomId);
+            if (!onlineClients.remove(userId, connection)) return;
+            ChatRoom currentChatRoom = actor.getRoom();
             User currentUser = currentChatRoom.getUserById(userId);
-            currentUser.setStatus(Status.offline);
-            onlineClients.remove(userId);
-
-            // Update all other clients that current user left this chat room
-            broadCastMessage(String.format("%s left", currentUser.getUsername()), true);
-
-            // Change current user's status from all online clients
-            updateAllOnlineClients(Status.offline.ordinal());
-            interrupt();
-        }
-
-        /**
-         * Get current chat room
-         *
-         * @param id chat room id
-         * @return
-         */
-        public ChatRoom getCurrentChatRoom(String id) {
-            return chatRooms.getOrDefault(id, new ChatRoom(roomId));
-        }
-
-        /**
-         * Add current user to current chat room
-         *
-         * @param user   current user object
-         * @param roomId current room id
-         */
-        public void addUserToChatRoom(User user, String roomId) {
-            ChatRoom existingChatRoom = getCurrentChatRoom(roomId);
-            existingChatRoom.addUser(user.getId(), user);
-            chatRooms.put(existingChatRoom.getId(), existingChatRoom);
+            setStatus(currentUser, Status.offline);
+            cluster.publishPresence(roomId, username, Status.offline);
         }
 
         /**
-         * Sync messages to all online clients
+         * Sync messages to all online clients. Room event
          *
-         * @param message         chat message
-         * @param isSystemMessage true if message is system purposes (i.e. inform user about who joined and who left)
+         * @param message         chat message of current user, or the whole line of a system message
+         * @param isSystemMessage true if message is system purposes (i.e. a server notice)
+         * @return journal sequence of the message, 0 for a system message
          * @throws IOException
          */
-        public void broadCastMessage(String message, Boolean isSystemMessage) throws IOException {
-            ChatRoom currentChatRoom = getCurrentChatRoom(roomId);
-            Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-            String messageWithTimeStamp = "[" + timestamp + "] " + message;
-
+        public long broadCastMessage(String message, Boolean isSystemMessage) throws IOException {
+            long start = System.nanoTime();
+            ServerEvents.Broadcast event = new ServerEvents.Broadcast();
+            event.begin();
+            OutboundFrame frame;
+            long seq = 0;
             // Do not save system messages in chat room history
-            if (!isSystemMessage) {
-                currentChatRoom.addChatHistory(messageWithTimeStamp);
+            if (isSystemMessage) {
+                frame = OutboundFrame.message(message);
+            } else {
+                ChatRoom room = actor.getRoom();
+                ChatMessage chat = ChatMessage.room(username, message);
+                seq = store.addChatHistory(room, chat);
+                frame = OutboundFrame.message(room, chat);
+                actor.countMessage();
             }
 
-            // Send message to all online clients in this chat room
-            for (DataOutputStream client : onlineClients.values()) {
-                client.writeInt(ResponseType.MESSAGE.ordinal());
-                client.writeUTF(isSystemMessage ? message : messageWithTimeStamp);
+            // Send message to all online clients in this chat room. The frame is encoded once and every
+            // connection's queue gets the same bytes
+            if (ServerConfig.SERVER_MODE == ServerMode.nio && onlineClients.size() >= OutboundFrame.DIRECT_MIN_RECIPIENTS) {
+                frame = frame.toDirect();
             }
-
-            // Update local chat room object
-            saveCurrentSessionInfo();
+            for (ClientConnection client : onlineClients.values()) {
+                client.send(frame);
+            }
+            frame.release();    // Each queue holds its own reference
+            Metrics.FANOUT_LATENCY.record(System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.room = roomId;
+                event.recipients = onlineClients.size();
+                event.bytes = frame.getBuffer().remaining();
+                event.system = isSystemMessage;
+                event.commit();
+            }
+            return seq;
         }
     }
 }
@@ -0,0 +1,85 @@
+/**
+ * Connection handling core of the server
+ */
+enum ServerMode {
+    thread,     // One blocking thread per connection
+    virtual,    // One blocking virtual thread per connection
+    nio         // Selector loop with non-blocking reads and a worker pool
+}
+
+/**
+ * fsync policy of the chat journal
+ */
+enum SyncPolicy {
+    always,     // Every append waits until its record is on disk
+    batch,      // Records are written and synced once per commit interval
+    none        // Records are written once per commit interval, the OS decides when to sync
+}
+
+/**
+ * Transport of cluster events between nodes
+ */
+enum BusType {
+    tcp,        // Each node listens on its client port plus an offset and connects to every other node
+    local       // Nodes started in the same JVM, for tests
+}
+
+/**
+ * Server settings. Each setting can be overridden on server start with -D<property>=<value>
+ */
+public class ServerConfig {
+    // Server core
+    public static final int SERVER_PORT = Integer.getInteger("chatroom.server.port", 8080);
+    public static final ServerMode SERVER_MODE = ServerMode.valueOf(System.getProperty("chatroom.server.mode", "thread"));
+    public static final int NIO_WORKERS = Integer.getInteger("chatroom.nio.workers", Runtime.getRuntime().availableProcessors());
+    public static final int ROOM_WORKERS = Integer.getInteger("chatroom.room.workers", Runtime.getRuntime().availableProcessors());   // Threads handling room events, each room is handled by one of them at a time
+    public static final int ROOM_IDLE_CLOSE_S = Integer.getInteger("chatroom.room.idleCloseS", 300);    // Rooms without online clients are saved and closed after this long, 0 keeps them open
+    public static final int ROOM_MAX_OPEN = Integer.getInteger("chatroom.room.maxOpen", 1000);    // Open rooms beyond this are closed early, least recently active first, once nobody is online in them. 0 for no limit
+    public static final long PRESENCE_TICK_MS = Long.getLong("chatroom.presence.tickMs", 100);   // Status changes of a room are collected this long and sent as one delta, 0 sends each change right away
+    public static final int STATS_INTERVAL_S = Integer.getInteger("chatroom.stats.intervalS", 60);  // 0 turns statistics output off
+
+    // Cluster
+    public static final String CLUSTER_NODES = System.getProperty("chatroom.cluster.nodes", "");    // Client addresses (host:port) of all nodes, comma separated. Empty runs a single server
+    public static final String CLUSTER_SELF = System.getProperty("chatroom.cluster.self", "127.0.0.1:" + SERVER_PORT);   // This node's address in the node list, its bus listens on this host only
+    public static final BusType CLUSTER_BUS = BusType.valueOf(System.getProperty("chatroom.cluster.bus", "tcp"));
+    public static final int CLUSTER_BUS_PORT_OFFSET = Integer.getInteger("chatroom.cluster.busPortOffset", 1000);  // A node's bus listens on its client port plus this
+    public static final int CLUSTER_VIRTUAL_NODES = Integer.getInteger("chatroom.cluster.virtualNodes", 128);   // Ring points per node, more points spread rooms more evenly
+    public static final long CLUSTER_HEARTBEAT_MS = Long.getLong("chatroom.cluster.heartbeatMs", 500);
+    public static final long CLUSTER_NODE_TIMEOUT_MS = Long.getLong("chatroom.cluster.nodeTimeoutMs", 3000);   // A node not heard from this long is taken off the ring
+    public static final long CLUSTER_HANDOFF_TIMEOUT_MS = Long.getLong("chatroom.cluster.handoffTimeoutMs", 5000);   // Longest wait for other nodes to release a room before opening it
+
+    // Chat history
+    public static final int HISTORY_PAGE_SIZE = Integer.getInteger("chatroom.history.pageSize", 50);  // Messages sent on join and per older page
+    public static final int HISTORY_MEMORY_CAPACITY = Integer.getInteger("chatroom.history.memoryCapacity", 1000);  // Newest messages kept in memory per room, older ones are read from disk
+
+    // Outbound queues
+    public static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("chatroom.outbound.capacity", 1024);  // Frames per connection
+    public static final OverflowPolicy OUTBOUND_OVERFLOW_POLICY = OverflowPolicy.valueOf(System.getProperty("chatroom.outbound.overflow", "drop_oldest"));
+    public static final int OUTBOUND_BUFFER_SIZE = Integer.getInteger("chatroom.outbound.bufferSize", 64 * 1024);   // Frame bytes coalesced into one socket write at most
+    public static final long OUTBOUND_FLUSH_DELAY_US = Long.getLong("chatroom.outbound.flushDelayUs", 0);  // Blocking writers wait this long for more frames before flushing, 0 flushes as soon as the queue is empty
+    public static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("chatroom.outbound.tcpNoDelay", "true"));   // Writers coalesce frames themselves, Nagle's algorithm would only delay the flushes
+    public static final int OUTBOUND_DIRECT_BUFFER_SIZE = Integer.getInteger("chatroom.outbound.directBufferSize", 4 * 1024);  // Large NIO broadcasts up to this size are copied to a pooled direct buffer, bigger ones to a buffer of their own
+    public static final int OUTBOUND_POOLED_DIRECT_BUFFERS = Integer.getInteger("chatroom.outbound.pooledDirectBuffers", 256);  // Each is in use until the broadcast is written to its last recipient
+
+    // Output compression, for clients that ask for it
+    public static final boolean COMPRESSION_ENABLED = Boolean.parseBoolean(System.getProperty("chatroom.compression.enabled", "true"));
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("chatroom.compression.level", 6);   // Deflater level, 1 (fastest) to 9 (smallest)
+
+    // File transfers
+    public static final int TRANSFER_CHUNK_SIZE = Integer.getInteger("chatroom.transfer.chunkSize", 64 * 1024);  // Bytes per download chunk
+    public static final boolean TRANSFER_ZERO_COPY = Boolean.parseBoolean(System.getProperty("chatroom.transfer.zeroCopy", "true"));   // transferTo downloads in NIO mode
+    public static final int TRANSFER_POOLED_BUFFERS = Integer.getInteger("chatroom.transfer.pooledBuffers", 64);
+
+    // Metrics
+    public static final boolean METRICS_ENABLED = Boolean.parseBoolean(System.getProperty("chatroom.metrics.enabled", "true"));   // Registers the metrics MBean and serves the metrics as plain text
+    public static final String METRICS_HOST = System.getProperty("chatroom.metrics.host", "127.0.0.1");  // Address of the plain-text endpoint, local only by default
+    public static final int METRICS_PORT_OFFSET = Integer.getInteger("chatroom.metrics.portOffset", 2000);   // The plain-text endpoint listens on the client port plus this
+
+    // Chat journal
+    public static final SyncPolicy JOURNAL_SYNC_POLICY = SyncPolicy.valueOf(System.getProperty("chatroom.journal.sync", "batch"));
+    public static final long JOURNAL_COMMIT_INTERVAL_MS = Long.getLong("chatroom.journal.commitIntervalMs", 20);    // Group commit window
+    public static final int JOURNAL_SNAPSHOT_EVERY = Integer.getInteger("chatroom.journal.snapshotEvery", 10000);  // Journal records between room snapshots
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,144 @@
+import jdk.jfr.*;
+
+import java.net.InetAddress;
+
+/**
+ * Java Flight Recorder events of the server. They cost next to nothing unless a recording enables them,
+ * which the settings in chatroom.jfc do, for example on top of the JDK's default settings:
+ * <br>
+ * java -XX:StartFlightRecording:settings=default,settings=chatroom.jfc,filename=server.jfr Server
+ * <br>
+ * or later on a running server with jcmd (pid) JFR.start settings=chatroom.jfc
+ */
+public class ServerEvents {
+    private ServerEvents() {
+    }
+
+    /**
+     * Record an accepted connection. Host names are not looked up, a reverse DNS query would block the accepting thread
+     *
+     * @param address client address
+     * @return numeric client address, for logging
+     */
+    public static String acceptConnection(InetAddress address) {
+        String hostAddress = address.getHostAddress();
+        ConnectionAccepted event = new ConnectionAccepted();
+        if (event.shouldCommit()) {
+            event.address = hostAddress;
+            event.mode = ServerConfig.SERVER_MODE.name();
+            event.commit();
+        }
+        return hostAddress;
+    }
+
+    @Name("chatroom.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({"Chat Room", "Network"})
+    @Description("Client connection accepted")
+    static class ConnectionAccepted extends Event {
+        @Label("Address")
+        String address;
+
+        @Label("Server Mode")
+        String mode;
+    }
+
+    @Name("chatroom.Broadcast")
+    @Label("Broadcast")
+    @Category({"Chat Room", "Messages"})
+    @Description("Message encoded once and queued to every online client of a room")
+    static class Broadcast extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Frame Size")
+        @DataAmount
+        long bytes;
+
+        @Label("System Message")
+        boolean system;
+    }
+
+    @Name("chatroom.SnapshotSaved")
+    @Label("Room Snapshot Saved")
+    @Category({"Chat Room", "Persistence"})
+    @Description("Room written to its snapshot file and synced, after which its journal starts over")
+    static class SnapshotSaved extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Journal Sequence")
+        long journalSeq;
+
+        @Label("Snapshot Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("chatroom.FileTransfer")
+    @Label("File Transfer")
+    @Category({"Chat Room", "Files"})
+    @Description("Upload or download of a file, from its request to its last chunk")
+    static class FileTransfer extends Event {
+        @Label("Direction")
+        String direction;
+
+        @Label("File Name")
+        String filename;
+
+        @Label("File Size")
+        @DataAmount
+        long size;
+
+        @Label("Bytes Transferred")
+        @DataAmount
+        long bytes;
+
+        @Label("Throughput")
+        @DataAmount
+        @Frequency
+        long throughput;
+
+        @Label("Complete")
+        @Description("False if the transfer was interrupted, or an upload failed its integrity check")
+        boolean complete;
+
+        private transient long startNanos;
+
+        /**
+         * Start timing a transfer
+         *
+         * @param direction upload or download
+         * @param filename  file name
+         * @param size      file size
+         * @return event, to finish once the transfer ends
+         */
+        static FileTransfer start(String direction, String filename, long size) {
+            FileTransfer event = new FileTransfer();
+            event.begin();
+            event.startNanos = System.nanoTime();
+            event.direction = direction;
+            event.filename = filename;
+            event.size = size;
+            return event;
+        }
+
+        /**
+         * End the transfer and record it
+         *
+         * @param bytes    bytes sent or received
+         * @param complete true if the whole file went through
+         */
+        void finish(long bytes, boolean complete) {
+            end();
+            if (!shouldCommit()) return;
+            this.bytes = bytes;
+            this.complete = complete;
+            this.throughput = (long) (bytes * 1e9 / Math.max(1, System.nanoTime() - startNanos));
+            commit();
+        }
+    }
+}
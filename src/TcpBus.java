@@ -0,0 +1,193 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Cluster bus over TCP. Each node listens on the host of its own address, the loopback address by default,
+ * and its client port plus {@link ServerConfig#CLUSTER_BUS_PORT_OFFSET}. It keeps one outgoing connection to every
+ * other node, over which it sends its events as [int length][event]. A single sender thread writes the events
+ * in order, reconnecting to a node that went away. Events are not authenticated, so only connections from the
+ * addresses of the configured nodes are accepted
+ */
+public class TcpBus implements ClusterBus {
+    private static final int MAX_EVENT_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_EVENTS = 10000;    // Events waiting for the sender, newer ones are dropped
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final long RECONNECT_DELAY_MS = 1000;   // Wait between connection attempts to a node that is down
+
+    private final String self;
+    private final List<String> peers;
+    private final LinkedBlockingQueue<byte[]> outbox = new LinkedBlockingQueue<>(MAX_PENDING_EVENTS);
+    private final HashMap<String, DataOutputStream> links = new HashMap<>();   // Connection to each peer, only used by the sender thread
+    private final HashMap<String, Long> failures = new HashMap<>();    // Time of the last failed connection attempt to each peer
+    private final Set<InetAddress> allowed = new HashSet<>();   // Addresses of the peers, the only ones whose connections are accepted
+    private ServerSocket listener;
+    private Thread sender;
+    private volatile boolean closed = false;
+
+    /**
+     * @param self  client address of this node
+     * @param peers client addresses of the other nodes
+     */
+    public TcpBus(String self, List<String> peers) {
+        this.self = self;
+        this.peers = peers;
+    }
+
+    @Override
+    public void start(Consumer<ClusterEvent> subscriber) throws IOException {
+        for (String peer : peers) {
+            String host = Cluster.parseAddress(peer).getHostString();
+            try {
+                allowed.addAll(List.of(InetAddress.getAllByName(host)));
+            } catch (IOException e) {
+                System.out.println("Cluster node " + peer + " not resolved, its bus connections are refused: " + e.getMessage());
+            }
+        }
+        listener = new ServerSocket();
+        listener.bind(busAddress(self));
+        daemon("cluster-bus-accept", () -> {
+            while (!closed) {
+                try {
+                    Socket socket = listener.accept();
+                    if (!allowed.contains(socket.getInetAddress())) {
+                        System.out.println("Cluster bus connection from " + socket.getInetAddress().getHostAddress() + " refused, not a cluster node");
+                        socket.close();
+                        continue;
+                    }
+                    daemon("cluster-bus-reader", () -> receive(socket, subscriber));
+                } catch (IOException e) {
+                    if (!closed) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        sender = daemon("cluster-bus-sender", this::send);
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        if (!outbox.offer(event.encode())) {
+            System.out.println("Cluster bus is falling behind, dropped a " + event.getType() + " event");
+        }
+    }
+
+    /**
+     * Read events of one peer until it disconnects
+     */
+    private void receive(Socket socket, Consumer<ClusterEvent> subscriber) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!closed) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_EVENT_SIZE) {
+                    throw new IOException("Invalid cluster event length " + length);
+                }
+                byte[] event = new byte[length];
+                in.readFully(event);
+                subscriber.accept(ClusterEvent.decode(event));
+            }
+        } catch (EOFException e) {
+            // Peer went away, it reconnects when it is back
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("Cluster bus connection from " + socket.getInetAddress() + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sender loop: write each event to every peer that can be reached
+     */
+    private void send() {
+        try {
+            while (!closed) {
+                byte[] event = outbox.take();
+                for (String peer : peers) {
+                    DataOutputStream out = link(peer);
+                    if (out == null) continue;
+                    try {
+                        out.writeInt(event.length);
+                        out.write(event);
+                        // Events queued meanwhile go out together, but none is held back
+                        if (outbox.isEmpty()) {
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        links.remove(peer);
+                        try {
+                            out.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Get the connection to a peer, connecting if there is none
+     *
+     * @param peer client address of the peer
+     * @return connection, null if the peer cannot be reached right now
+     */
+    private DataOutputStream link(String peer) {
+        DataOutputStream out = links.get(peer);
+        if (out != null) return out;
+        Long failed = failures.get(peer);
+        if (failed != null && System.currentTimeMillis() - failed < RECONNECT_DELAY_MS) return null;
+        Socket socket = new Socket();
+        try {
+            socket.connect(busAddress(peer), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            links.put(peer, out);
+            failures.remove(peer);
+            return out;
+        } catch (IOException e) {
+            failures.put(peer, System.currentTimeMillis());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param node client address of a node, host:port
+     * @return address its bus listens on
+     */
+    private static InetSocketAddress busAddress(String node) {
+        InetSocketAddress address = Cluster.parseAddress(node);
+        return new InetSocketAddress(address.getHostString(), address.getPort() + ServerConfig.CLUSTER_BUS_PORT_OFFSET);
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (sender != null) {
+            sender.interrupt();
+        }
+        if (listener != null) {
+            listener.close();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.*;
+import java.security.MessageDigest;
+
+/**
+ * A file being received from a client in chunks.
+ * Chunks are copied to disk through one pooled buffer, whatever the file size.
+ * The client announces the file's checksum up front. Content the file store already holds is not sent again,
+ * other content goes to a partial file that survives a dropped connection, so the client can resume from
+ * the bytes already on disk. The content only becomes a blob once its checksum matches.
+ * A second upload of content that is still arriving writes a file of its own, see {@link FileStore#reservePartial}
+ */
+public class UploadTransfer implements Closeable {
+    private final String filename;
+    private final String hash;
+    private final FileStore store;
+    private final File partial;            // null if the store already holds the content
+    private final FileOutputStream out;    // null if the store already holds the content
+    private final MessageDigest digest = Checksums.newDigest();
+    private final long fileSize;
+    private final long offset;
+    private long remaining;
+    private byte[] buffer;
+    private ServerEvents.FileTransfer event;   // Recorded once the upload ends
+
+    /**
+     * Open an upload, resuming the partial file of an earlier attempt with the same content
+     *
+     * @param store           file store
+     * @param filename        file name in the room
+     * @param hash            client's hex encoded SHA-256 of the whole file
+     * @param fileSize        announced file size
+     * @param requestedOffset position the client wants to resume from, 0 to start over
+     * @throws IOException
+     */
+    public UploadTransfer(FileStore store, String filename, String hash, long fileSize, long requestedOffset) throws IOException {
+        this.filename = filename;
+        this.hash = hash;
+        this.store = store;
+        this.fileSize = fileSize;
+        this.event = ServerEvents.FileTransfer.start("upload", filename, fileSize);
+        if (store.contains(hash)) {
+            // Already have it, nothing to receive
+            this.partial = null;
+            this.out = null;
+            this.offset = fileSize;
+            this.remaining = 0;
+            return;
+        }
+
+        // Resume at most from what is on disk, and hash that part once
+        this.partial = store.reservePartial(hash, this);
+        try {
+            offset = Math.max(0, Math.min(requestedOffset, partial.isFile() ? Math.min(partial.length(), fileSize) : 0));
+            Checksums.update(digest, partial, offset);
+            this.out = new FileOutputStream(partial, offset > 0);
+            out.getChannel().truncate(offset);
+        } catch (IOException e) {
+            store.releasePartial(hash, partial, this);
+            throw e;
+        }
+        this.remaining = fileSize - offset;
+        this.buffer = DownloadTransfer.BUFFERS.acquire();
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return position the client has to send from, the file size if the store already holds the content
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Copy one chunk from the client to the file
+     *
+     * @param dis    client input, positioned at the chunk data
+     * @param length chunk length
+     * @throws IOException
+     */
+    public void write(DataInputStream dis, int length) throws IOException {
+        if (length > remaining) {
+            throw new IOException(filename + ": chunk goes past the announced file size");
+        }
+        while (length > 0) {
+            int bytes = dis.read(buffer, 0, Math.min(buffer.length, length));
+            if (bytes < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, bytes);
+            digest.update(buffer, 0, bytes);
+            length -= bytes;
+            remaining -= bytes;
+        }
+    }
+
+    /**
+     * Complete the upload. The content is stored if it is complete and matches the announced checksum,
+     * otherwise the partial file is deleted so the next attempt starts over
+     *
+     * @param clientHash client's hex encoded SHA-256 of the whole file
+     * @return true if the store holds the content
+     * @throws IOException
+     */
+    public boolean finish(String clientHash) throws IOException {
+        ServerEvents.FileTransfer transfer = event;
+        event = null;   // Recorded here rather than as interrupted by close()
+        boolean stored;
+        try {
+            closeOutput();
+            // Still reserved, no other upload starts writing the file while it is committed
+            stored = store(clientHash);
+        } finally {
+            close();
+        }
+        transfer.finish(fileSize - offset - remaining, stored);
+        return stored;
+    }
+
+    /**
+     * @param clientHash client's hex encoded SHA-256 of the whole file
+     * @return true if the store holds the content
+     * @throws IOException
+     */
+    private boolean store(String clientHash) throws IOException {
+        if (!hash.equals(clientHash)) return false;
+        if (out == null) return true;
+        if (remaining != 0 || !Checksums.toHex(digest.digest()).equals(hash)) {
+            partial.delete();
+            return false;
+        }
+        store.commit(partial, hash);
+        return true;
+    }
+
+    /**
+     * Stop receiving. The partial file is kept for a later resume, unless it was one of a concurrent upload
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        closeOutput();
+        if (partial != null) {
+            store.releasePartial(hash, partial, this);
+        }
+        if (event != null) {
+            event.finish(fileSize - offset - remaining, false);
+            event = null;
+        }
+    }
+
+    private void closeOutput() throws IOException {
+        if (buffer != null) {
+            DownloadTransfer.BUFFERS.release(buffer);
+            buffer = null;
+        }
+        if (out != null) {
+            out.close();
+        }
+    }
+}
@@ -8,7 +8,7 @@ enum Status {
  * User class represents a user from chat room
  */
 public class User implements Serializable {
-    private static final long serialVersionUid = 02L;
+    private static final long serialVersionUID = 2583178782971965706L;   // Computed value of the last serialized version, for reading old snapshots
     private String id;  // User id. UUID as string
     private String username;
     private Status status;  // Status keep track if user is online or not
@@ -0,0 +1,175 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+/**
+ * What a chat line shows
+ */
+enum LineKind {
+    room,       // Message to every member
+    direct,     // Private message
+    system,     // Server notice, or history entry of an earlier version, shown as its text
+    error       // Error notice for the sender of a request
+}
+
+/**
+ * Binary encoding of a chat line, shared by server and client. Version 1 is
+ * [int length][byte version][byte kind][long epoch millis][int sender][int recipient count][int recipient]...[UTF-8 text].
+ * Users are sent as numeric handles of the room. A connection learns the username of a handle once, from a HANDLE frame
+ * queued before the first frame that uses it. The line is formatted by the client, and the text length follows from the
+ * line length, so it is not capped at the 64 KB of writeUTF
+ */
+public class WireMessage {
+    public static final byte VERSION = 1;
+    public static final int NO_USER = -1;
+    private static final LineKind[] KINDS = LineKind.values();
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final int HEADER_SIZE = 1 + 1 + 8 + 4 + 4;
+
+    private final LineKind kind;
+    private final long timestamp;
+    private final int sender;
+    private final int[] recipients;
+    private final String text;
+
+    public WireMessage(LineKind kind, long timestamp, int sender, int[] recipients, String text) {
+        this.kind = kind;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.recipients = recipients;
+        this.text = text;
+    }
+
+    public LineKind getKind() {
+        return kind;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Encode the line
+     *
+     * @param out output
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(HEADER_SIZE + recipients.length * 4 + bytes.length);
+        out.writeByte(VERSION);
+        out.writeByte(kind.ordinal());
+        out.writeLong(timestamp);
+        out.writeInt(sender);
+        out.writeInt(recipients.length);
+        for (int recipient : recipients) {
+            out.writeInt(recipient);
+        }
+        out.write(bytes);
+    }
+
+    /**
+     * Decode a line
+     *
+     * @param in input, positioned at the line length
+     * @return chat line, null if it has a version this client does not know, in which case it is skipped
+     * @throws IOException
+     */
+    public static WireMessage read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE) {
+            throw new IOException("Invalid line length " + length);
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            in.skipNBytes(length - 1);
+            return null;
+        }
+        byte kindIndex = in.readByte();
+        if (kindIndex < 0 || kindIndex >= KINDS.length) {
+            throw new IOException("Invalid line kind " + kindIndex);
+        }
+        LineKind kind = KINDS[kindIndex];
+        long timestamp = in.readLong();
+        int sender = in.readInt();
+        int recipientCount = in.readInt();
+        if (recipientCount < 0 || recipientCount > (length - HEADER_SIZE) / 4) {
+            throw new IOException("Invalid recipient count " + recipientCount);
+        }
+        int[] recipients = new int[recipientCount];
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = in.readInt();
+        }
+        byte[] bytes = new byte[length - HEADER_SIZE - recipients.length * 4];
+        in.readFully(bytes);
+        return new WireMessage(kind, timestamp, sender, recipients, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Format the line the way it is shown in the chat section
+     *
+     * @param usernames usernames of the handles this connection has learned
+     * @param self      reader's username
+     * @return chat line
+     */
+    public String format(Map<Integer, String> usernames, String self) {
+        if (kind == LineKind.system || kind == LineKind.error) return text;
+        String time = "[" + TIME_FORMAT.format(Instant.ofEpochMilli(timestamp)) + "] ";
+        String from = usernames.getOrDefault(sender, "?");
+        if (kind == LineKind.room) {
+            return time + from + ": " + text;
+        }
+        if (from.equals(self)) {
+            StringBuilder to = new StringBuilder();
+            for (int recipient : recipients) {
+                to.append(to.length() == 0 ? "@" : " @").append(usernames.getOrDefault(recipient, "?"));
+            }
+            return time + "private message sent to " + to + ": " + text;
+        }
+        return time + "private message from @" + from + ": " + text;
+    }
+
+    /**
+     * @param usernames usernames of the handles this connection has learned
+     * @return sender's username, null if the line has no sender
+     */
+    public String getSender(Map<Integer, String> usernames) {
+        return usernames.get(sender);
+    }
+
+    /**
+     * Write request text as [int length][UTF-8 bytes]
+     *
+     * @param out  output
+     * @param text text
+     * @throws IOException
+     */
+    public static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read request text written by {@link #writeText}
+     *
+     * @param in        input
+     * @param maxLength largest accepted length in bytes
+     * @return text
+     * @throws IOException
+     */
+    public static String readText(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid text length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}